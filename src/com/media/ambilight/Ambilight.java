@@ -19,7 +19,7 @@ public class Ambilight implements AmbilightGLRenderer.AmbilightGLRendererCallbac
     private SurfaceGL mSurface;
 
     private ArrayList<AmbilightOutput> mOutputs = new ArrayList<AmbilightOutput>();
-    private AmbilightLogic mLogic = new AmbilightLogic();
+    private AmbilightOutputTicker mTicker = new AmbilightOutputTicker(AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS);
     private SurfaceHolder.Callback mCallback;
     private View mRootView = null;
 
@@ -86,6 +86,7 @@ public class Ambilight implements AmbilightGLRenderer.AmbilightGLRendererCallbac
 
             self.mEnableOutput = enableOutput;
             self.mEnableOutputExternal = enableOutputExternal;
+            self.mTicker.setEnabled(enableOutput);
 
             boolean nextOff = !self.mEnableOutput && !self.mEnableOutputExternal;
             if (currentOff != nextOff) {
@@ -102,6 +103,7 @@ public class Ambilight implements AmbilightGLRenderer.AmbilightGLRendererCallbac
             for (AmbilightOutput out : self.mOutputs) {
                 out.setColor(color);
             }
+            self.mTicker.invalidate();
         }
     }
 
@@ -128,18 +130,17 @@ public class Ambilight implements AmbilightGLRenderer.AmbilightGLRendererCallbac
         for (AmbilightOutput out : mOutputs) {
             out.create();
         }
+        mTicker.start(mOutputs);
     }
 
     @Override
-    public void onAmbilightColors(final int[] colors) {
+    public void onAmbilightColors(final int[] colors, long timestampNs) {
         if (!mEnableOutput) {
             return;
         }
 
-        int[] newColors = mLogic.update(colors);
-        for (AmbilightOutput out : mOutputs) {
-            out.update(newColors);
-        }
+        // the outputs pick the latest colors up at their own rate
+        mTicker.publish(colors, timestampNs);
     }
 
     @Override
@@ -152,6 +153,7 @@ public class Ambilight implements AmbilightGLRenderer.AmbilightGLRendererCallbac
     @Override
     public void onAmbilightDestroyed() {
         Log.i(TAG, "onAmbilightDestroyed");
+        mTicker.stop();
         for (AmbilightOutput out : mOutputs) {
             out.destroy();
         }
@@ -6,6 +6,77 @@ import android.graphics.Color;
 import android.support.v7.graphics.Palette;
 
 public class AmbilightColorUtil {
+    private static final int FIXED_SHIFT = 16;
+    private static final int FIXED_ONE = 1 << FIXED_SHIFT;
+    private static final int FIXED_HALF = FIXED_ONE >> 1;
+
+    private static final int GAIN_SATURATION = 4;
+    private static final int GAIN_VALUE = 2;
+    private static final int GAIN_VALUE_THRESHOLD = 25;
+
+    // RECIPROCALS[i] = 1 / i in 16.16 fixed point
+    private static final int[] RECIPROCALS = new int[256];
+
+    // sRGB byte to 16 bit linear light, and 12 bit linear light back to sRGB byte
+    public static final int LINEAR_BITS = 16;
+    public static final int LINEAR_TO_SRGB_BITS = 12;
+    public static final int LINEAR_TO_SRGB_SHIFT = LINEAR_BITS - LINEAR_TO_SRGB_BITS;
+    public static final int[] SRGB_TO_LINEAR = new int[256];
+    public static final int[] LINEAR_TO_SRGB = new int[1 << LINEAR_TO_SRGB_BITS];
+
+    // RGB565 channels expanded to 8 bits
+    public static final int[] RGB565_5_TO_8 = new int[1 << 5];
+    public static final int[] RGB565_6_TO_8 = new int[1 << 6];
+
+    static {
+        for (int i = 1; i < RECIPROCALS.length; i++) {
+            RECIPROCALS[i] = (FIXED_ONE + i / 2) / i;
+        }
+
+        for (int i = 0; i < RGB565_5_TO_8.length; i++) {
+            RGB565_5_TO_8[i] = (i << 3) | (i >> 2);
+        }
+        for (int i = 0; i < RGB565_6_TO_8.length; i++) {
+            RGB565_6_TO_8[i] = (i << 2) | (i >> 4);
+        }
+
+        final int linearMax = (1 << LINEAR_BITS) - 1;
+        for (int i = 0; i < SRGB_TO_LINEAR.length; i++) {
+            double c = i / 255.0;
+            double linear = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+            SRGB_TO_LINEAR[i] = (int) Math.round(linear * linearMax);
+        }
+
+        final int srgbMax = LINEAR_TO_SRGB.length - 1;
+        for (int i = 0; i < LINEAR_TO_SRGB.length; i++) {
+            double linear = (double) i / srgbMax;
+            double c = linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+            LINEAR_TO_SRGB[i] = (int) Math.round(c * 255);
+        }
+    }
+
+    // Readback pixels viewed as little endian ints: 0xAABBGGRR
+    public static int rgbaToColor(int rgba) {
+        return 0xFF000000 | ((rgba & 0xFF) << 16) | (rgba & 0xFF00) | ((rgba >> 16) & 0xFF);
+    }
+
+    // RGB565 readback pixels: rrrrrggg gggbbbbb
+    public static int rgb565Red(int rgb565) {
+        return RGB565_5_TO_8[(rgb565 >> 11) & 0x1F];
+    }
+
+    public static int rgb565Green(int rgb565) {
+        return RGB565_6_TO_8[(rgb565 >> 5) & 0x3F];
+    }
+
+    public static int rgb565Blue(int rgb565) {
+        return RGB565_5_TO_8[rgb565 & 0x1F];
+    }
+
+    public static int rgb565ToColor(int rgb565) {
+        return Color.rgb(rgb565Red(rgb565), rgb565Green(rgb565), rgb565Blue(rgb565));
+    }
+
     public static int[] generateRainbow(float saturation, float brightness, int size,
             boolean black, boolean white, boolean gray) {
         final int[] result = new int[size];
@@ -30,61 +101,6 @@ public class AmbilightColorUtil {
         return result;
     }
 
-    static double getDistance(float[] c1, float[] c2, boolean compareThirdComponent) {
-        float result = (float) (Math.pow(c1[0] / 360 - c2[0] / 360, 2d) + Math.pow(c1[1] - c2[1], 2d));
-
-        if (compareThirdComponent)
-            result += Math.pow(c1[2] - c2[2], 2d);
-
-        return result;
-    }
-
-    public static int getDominantColor(int colors[], int binNumber) {
-        final int[] baseColors = generateRainbow(1f, 1f, binNumber, false, true, true);
-
-        final float[][] colorsHSV = new float[colors.length][];
-        final float[][] baseColorsHSV = new float[binNumber][];
-
-        for (int i = 0; i < colors.length; i++) {
-            colorsHSV[i] = new float[3];
-            Color.colorToHSV(colors[i], colorsHSV[i]);
-        }
-        for (int i = 0; i < baseColors.length; i++) {
-            baseColorsHSV[i] = new float[3];
-            Color.colorToHSV(baseColors[i], baseColorsHSV[i]);
-        }
-
-        final int[] bins = new int[binNumber];
-
-        for (float[] colorHsv : colorsHSV) {
-            double minDist = getDistance(colorHsv, baseColorsHSV[0], true);
-            int minInd = 0;
-
-            for (int ind = 1; ind < baseColorsHSV.length; ind++) {
-                final double dist = getDistance(colorHsv, baseColorsHSV[ind], true);
-
-                if (dist < minDist) {
-                    minDist = dist;
-                    minInd = ind;
-                }
-            }
-            bins[minInd]++;
-        }
-
-        int max = bins[0];
-        int maxInd = 0;
-
-        for (int i = 1; i < bins.length; i++) {
-            final int v = bins[i];
-
-            if (v > max) {
-                max = v;
-                maxInd = i;
-            }
-        }
-        return baseColors[maxInd];
-    }
-
     public static int computeAverageQuadColor(byte[] pixelData, int rectX, int rectY, int rectWidth, int rectHeight,
             int bytesPerPixel, int bytesPerRow) {
         int rSum = 0;
@@ -96,9 +112,12 @@ public class AmbilightColorUtil {
             for (int x = 0; x < rectWidth; x += 1) {
                 int pixelDataOffset = rowDataOffset + bytesPerPixel * x;
 
-                rSum += Math.pow(pixelData[pixelDataOffset + 0] & 0xFF, 2);
-                gSum += Math.pow(pixelData[pixelDataOffset + 1] & 0xFF, 2);
-                bSum += Math.pow(pixelData[pixelDataOffset + 2] & 0xFF, 2);
+                int r = pixelData[pixelDataOffset + 0] & 0xFF;
+                int g = pixelData[pixelDataOffset + 1] & 0xFF;
+                int b = pixelData[pixelDataOffset + 2] & 0xFF;
+                rSum += r * r;
+                gSum += g * g;
+                bSum += b * b;
             }
         }
         int numberOfPixels = rectWidth * rectHeight;
@@ -133,96 +152,69 @@ public class AmbilightColorUtil {
         return Color.rgb(r, g, b);
     }
 
+    public static int linearToColor(int r, int g, int b) {
+        return Color.rgb(LINEAR_TO_SRGB[r >> LINEAR_TO_SRGB_SHIFT],
+                LINEAR_TO_SRGB[g >> LINEAR_TO_SRGB_SHIFT],
+                LINEAR_TO_SRGB[b >> LINEAR_TO_SRGB_SHIFT]);
+    }
+
     public static int computeAverageGainedColors(byte[] pixelData, int rectX, int rectY, int rectWidth, int rectHeight,
             int bytesPerPixel, int bytesPerRow) {
 
         int color = computeAverageColor(pixelData, rectX, rectY, rectWidth, rectHeight,
                 bytesPerPixel, bytesPerRow);
 
+        return gainColor(color);
+    }
+
+    /**
+     * Boosts saturation (x4) and value (x2, only above 10%) of the color, keeping its hue.
+     * Works on the packed RGB in 16.16 fixed point, so it doesn't allocate and doesn't go through
+     * float HSV conversion. Grayed colors are returned as is.
+     */
+    public static int gainColor(int color) {
         int r = Color.red(color);
         int g = Color.green(color);
         int b = Color.blue(color);
 
         // don't gain grayed colors
-        if (Math.abs(Math.abs(r - g) - Math.abs(g - b)) <= (int)(r * 0.01)) {
+        if (Math.abs(Math.abs(r - g) - Math.abs(g - b)) <= r / 100) {
             return color;
         }
 
-        float[] hsv = new float[3];
-        Color.colorToHSV(color, hsv);
-
-        hsv[1] *= 4.0f;
-
-        if (hsv[2] > 0.1)
-            hsv[2] *= 2.0f;
-
-        if (hsv[1] > 1f)
-            hsv[1] = 1f;
-        if (hsv[2] > 1f)
-            hsv[2] = 1f;
-
-        return Color.HSVToColor(hsv);
-    }
-
-    public static int computeDominantColor(byte[] pixelData, int rectX, int rectY, int rectWidth, int rectHeight,
-            int bytesPerPixel, int bytesPerRow) {
-
-        int[] colors = getRGBColors(pixelData, rectX, rectY, rectWidth, rectHeight, bytesPerPixel, bytesPerRow);
-
-        Bitmap b = Bitmap.createBitmap(colors, rectWidth, rectHeight, Bitmap.Config.ARGB_8888);
-        Palette palette = Palette.from(b).generate();
-
-        int color = Color.BLACK;
-
-        Palette.Swatch sw = palette.getLightVibrantSwatch();
-        int populataion = 0;
-        if (sw != null) {
-            int p = sw.getPopulation();
-            if (p > populataion) {
-                populataion = p;
-                color = sw.getRgb();
-            }
-        }
-
-        sw = palette.getVibrantSwatch();
-        if (sw != null) {
-            int p = sw.getPopulation();
-            if (p > populataion) {
-                populataion = p;
-                color = sw.getRgb();
-            }
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        int delta = max - min;
+        if (delta == 0) {
+            return color;
         }
 
-        sw = palette.getDarkVibrantSwatch();
-        if (sw != null) {
-            int p = sw.getPopulation();
-            if (p > populataion) {
-                populataion = p;
-                color = sw.getRgb();
-            }
-        }
+        // value: V > 0.1 means max > 25.5
+        int maxGained = max > GAIN_VALUE_THRESHOLD ? Math.min(max * GAIN_VALUE, 0xFF) : max;
 
-        sw = palette.getLightMutedSwatch();
-        if (sw != null) {
-            int p = sw.getPopulation() / 2;
-            if (p > populataion) {
-                populataion = p;
-                color = sw.getRgb();
-            }
+        // saturation: S = delta / max
+        int saturation = GAIN_SATURATION * delta * RECIPROCALS[max];
+        if (saturation > FIXED_ONE) {
+            saturation = FIXED_ONE;
         }
+        int chroma = (maxGained * saturation + FIXED_HALF) >> FIXED_SHIFT;
 
-        if (color != Color.BLACK) {
-            return color;
-        }
+        // the same hue keeps the relative position of every channel between min and max
+        int reciprocal = RECIPROCALS[delta];
+        r = maxGained - ((chroma * ((max - r) * reciprocal) + FIXED_HALF) >> FIXED_SHIFT);
+        g = maxGained - ((chroma * ((max - g) * reciprocal) + FIXED_HALF) >> FIXED_SHIFT);
+        b = maxGained - ((chroma * ((max - b) * reciprocal) + FIXED_HALF) >> FIXED_SHIFT);
 
-        return computeAverageColor(pixelData, rectX, rectY, rectWidth, rectHeight,
-            bytesPerPixel, bytesPerRow);
+        return Color.rgb(r, g, b);
     }
 
     public static int[] computeDominantColors(byte[] pixelData, int rectX, int rectY, int rectWidth, int rectHeight,
             int bytesPerPixel, int bytesPerRow) {
         int[] colors = getRGBColors(pixelData, rectX, rectY, rectWidth, rectHeight, bytesPerPixel, bytesPerRow);
+        return computeDominantColors(colors, rectWidth, rectHeight);
+    }
 
+    private static int[] computeDominantColors(int[] colors, int rectWidth, int rectHeight) {
         Bitmap b = Bitmap.createBitmap(colors, rectWidth, rectHeight, Bitmap.Config.ARGB_8888);
         Palette palette = Palette.from(b).maximumColorCount(6).generate();
 
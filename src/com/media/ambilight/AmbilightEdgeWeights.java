@@ -0,0 +1,179 @@
+package com.media.ambilight;
+
+import android.graphics.Color;
+
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Per pixel weights of the zones, pixels nearer the physical screen edge weigh more.
+ * Masks are precomputed once per compiled layout into one flat int array (zone after zone,
+ * row by row), sampling is an integer multiply-accumulate over it.
+ */
+public class AmbilightEdgeWeights {
+    public static final int FALLOFF_NONE = 0;
+    public static final int FALLOFF_LINEAR = 1;
+    public static final int FALLOFF_GAUSSIAN = 2;
+
+    private static final int WEIGHT_ONE = 256;
+
+    private final int mFalloff;
+    private final boolean mLinear;
+
+    private int[] mWeights = new int[0];
+    private int[] mOffsets = new int[0];
+    private int[] mTotals = new int[0];
+    private int[] mZones;
+
+    public AmbilightEdgeWeights(int falloff, boolean linear) {
+        mFalloff = falloff;
+        mLinear = linear;
+    }
+
+    public void compile(AmbilightZoneLayout layout) {
+        final int count = layout.getZoneCount();
+        final int[] zones = layout.getZones();
+        final int[] edges = layout.getEdges();
+
+        int size = 0;
+        for (int i = 0, z = 0; i < count; i++, z += AmbilightZoneLayout.ZONE_STRIDE) {
+            size += zones[z + AmbilightZoneLayout.ZONE_WIDTH] * zones[z + AmbilightZoneLayout.ZONE_HEIGHT];
+        }
+
+        if (mWeights.length < size) {
+            mWeights = new int[size];
+        }
+        if (mOffsets.length < count) {
+            mOffsets = new int[count];
+            mTotals = new int[count];
+        }
+        mZones = zones;
+
+        int offset = 0;
+        for (int i = 0, z = 0; i < count; i++, z += AmbilightZoneLayout.ZONE_STRIDE) {
+            int width = zones[z + AmbilightZoneLayout.ZONE_WIDTH];
+            int height = zones[z + AmbilightZoneLayout.ZONE_HEIGHT];
+            int edge = edges[i];
+            boolean horizontal = edge == AmbilightZoneLayout.EDGE_LEFT || edge == AmbilightZoneLayout.EDGE_RIGHT;
+            int depth = horizontal ? width : height;
+
+            mOffsets[i] = offset;
+            int total = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int distance;
+                    if (edge == AmbilightZoneLayout.EDGE_LEFT) {
+                        distance = x;
+                    } else if (edge == AmbilightZoneLayout.EDGE_RIGHT) {
+                        distance = width - 1 - x;
+                    } else if (edge == AmbilightZoneLayout.EDGE_TOP) {
+                        distance = y;
+                    } else {
+                        distance = height - 1 - y;
+                    }
+                    int weight = weight(distance, depth);
+                    mWeights[offset++] = weight;
+                    total += weight;
+                }
+            }
+            mTotals[i] = total;
+        }
+    }
+
+    public int computeColor(IntBuffer pixels, int pixelsPerRow, int zone) {
+        final int[] weights = mWeights;
+        final int[] values = mLinear ? AmbilightColorUtil.SRGB_TO_LINEAR : null;
+        int z = zone * AmbilightZoneLayout.ZONE_STRIDE;
+        int rectX = mZones[z + AmbilightZoneLayout.ZONE_X];
+        int rectY = mZones[z + AmbilightZoneLayout.ZONE_Y];
+        int rectWidth = mZones[z + AmbilightZoneLayout.ZONE_WIDTH];
+        int rectHeight = mZones[z + AmbilightZoneLayout.ZONE_HEIGHT];
+
+        int w = mOffsets[zone];
+        long rSum = 0;
+        long gSum = 0;
+        long bSum = 0;
+
+        for (int y = 0; y < rectHeight; y++) {
+            int offset = pixelsPerRow * (rectY + y) + rectX;
+            for (int x = 0; x < rectWidth; x++) {
+                int rgba = pixels.get(offset + x);
+                int weight = weights[w++];
+                int r = rgba & 0xFF;
+                int g = (rgba >> 8) & 0xFF;
+                int b = (rgba >> 16) & 0xFF;
+                if (values != null) {
+                    r = values[r];
+                    g = values[g];
+                    b = values[b];
+                }
+                rSum += weight * r;
+                gSum += weight * g;
+                bSum += weight * b;
+            }
+        }
+        return toColor(rSum, gSum, bSum, mTotals[zone]);
+    }
+
+    public int computeColor(ShortBuffer pixels, int pixelsPerRow, int zone) {
+        final int[] weights = mWeights;
+        final int[] values = mLinear ? AmbilightColorUtil.SRGB_TO_LINEAR : null;
+        final int[] expand5 = AmbilightColorUtil.RGB565_5_TO_8;
+        final int[] expand6 = AmbilightColorUtil.RGB565_6_TO_8;
+        int z = zone * AmbilightZoneLayout.ZONE_STRIDE;
+        int rectX = mZones[z + AmbilightZoneLayout.ZONE_X];
+        int rectY = mZones[z + AmbilightZoneLayout.ZONE_Y];
+        int rectWidth = mZones[z + AmbilightZoneLayout.ZONE_WIDTH];
+        int rectHeight = mZones[z + AmbilightZoneLayout.ZONE_HEIGHT];
+
+        int w = mOffsets[zone];
+        long rSum = 0;
+        long gSum = 0;
+        long bSum = 0;
+
+        for (int y = 0; y < rectHeight; y++) {
+            int offset = pixelsPerRow * (rectY + y) + rectX;
+            for (int x = 0; x < rectWidth; x++) {
+                int rgb565 = pixels.get(offset + x);
+                int weight = weights[w++];
+                int r = expand5[(rgb565 >> 11) & 0x1F];
+                int g = expand6[(rgb565 >> 5) & 0x3F];
+                int b = expand5[rgb565 & 0x1F];
+                if (values != null) {
+                    r = values[r];
+                    g = values[g];
+                    b = values[b];
+                }
+                rSum += weight * r;
+                gSum += weight * g;
+                bSum += weight * b;
+            }
+        }
+        return toColor(rSum, gSum, bSum, mTotals[zone]);
+    }
+
+    private int toColor(long rSum, long gSum, long bSum, int total) {
+        if (total <= 0) {
+            return Color.BLACK;
+        }
+        int r = (int) (rSum / total);
+        int g = (int) (gSum / total);
+        int b = (int) (bSum / total);
+        if (mLinear) {
+            return AmbilightColorUtil.linearToColor(r, g, b);
+        }
+        return Color.rgb(r, g, b);
+    }
+
+    private int weight(int distance, int depth) {
+        if (mFalloff == FALLOFF_LINEAR) {
+            return Math.max(1, WEIGHT_ONE * (depth - distance) / depth);
+        }
+        if (mFalloff == FALLOFF_GAUSSIAN) {
+            // sigma is half of the strip depth
+            double sigma = Math.max(depth / 2.0, 0.5);
+            return Math.max(1, (int) Math.round(WEIGHT_ONE * Math.exp(-(distance * distance) / (2 * sigma * sigma))));
+        }
+        return WEIGHT_ONE;
+    }
+}
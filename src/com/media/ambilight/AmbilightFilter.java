@@ -0,0 +1,314 @@
+package com.media.ambilight;
+
+import android.graphics.Color;
+
+/**
+ * Temporal filter of the output colors. Targets come in with setTarget() at the sampling rate,
+ * evaluate() may be called at any rate, time is System.nanoTime() based.
+ * State is kept in flat arrays, r, g, b per channel, nothing is allocated after construction.
+ */
+public interface AmbilightFilter {
+
+    // jump to the colors, no smoothing (e.g. on a scene cut)
+    public void reset(final int[] colors, long nowNs);
+    public void setTarget(final int[] colors, long nowNs);
+    public void evaluate(long nowNs, final int[] out);
+
+    /**
+     * A new target every windowMs, the color moves linearly to it from the color shown at that moment.
+     * Changes smaller than the dead band are ignored.
+     */
+    public class Linear implements AmbilightFilter {
+        private static final int COMPONENTS = 3;
+        private static final int PROGRESS_ONE = 256;
+
+        private final int mCount;
+        private final long mWindowNs;
+        private final int mDeadBand;
+        private final int[] mFrom;
+        private final int[] mTo;
+
+        private long mWindowStartNs = 0;
+        private boolean mStarted = false;
+
+        public Linear(int count, int windowMs, int deadBand) {
+            mCount = count;
+            mWindowNs = windowMs * 1000000L;
+            mDeadBand = deadBand;
+            mFrom = new int[count * COMPONENTS];
+            mTo = new int[count * COMPONENTS];
+        }
+
+        @Override
+        public void reset(final int[] colors, long nowNs) {
+            final int count = Math.min(colors.length, mCount);
+            for (int i = 0, c = 0; i < count; i++, c += COMPONENTS) {
+                int color = colors[i];
+                mFrom[c + 0] = mTo[c + 0] = Color.red(color);
+                mFrom[c + 1] = mTo[c + 1] = Color.green(color);
+                mFrom[c + 2] = mTo[c + 2] = Color.blue(color);
+            }
+            mWindowStartNs = nowNs;
+            mStarted = true;
+        }
+
+        @Override
+        public void setTarget(final int[] colors, long nowNs) {
+            if (mStarted && nowNs - mWindowStartNs < mWindowNs) {
+                return;
+            }
+
+            // the next gradient starts from what is shown right now
+            final int count = Math.min(colors.length, mCount);
+            final int progress = progress(nowNs);
+            for (int i = 0, c = 0; i < count; i++, c += COMPONENTS) {
+                int color = colors[i];
+                target(c + 0, Color.red(color), progress);
+                target(c + 1, Color.green(color), progress);
+                target(c + 2, Color.blue(color), progress);
+            }
+            mWindowStartNs = nowNs;
+            mStarted = true;
+        }
+
+        @Override
+        public void evaluate(long nowNs, final int[] out) {
+            final int count = Math.min(out.length, mCount);
+            final int progress = progress(nowNs);
+            for (int i = 0, c = 0; i < count; i++, c += COMPONENTS) {
+                out[i] = Color.rgb(interpolate(c + 0, progress), interpolate(c + 1, progress), interpolate(c + 2, progress));
+            }
+        }
+
+        private void target(int component, int value, int progress) {
+            int current = interpolate(component, progress);
+            mFrom[component] = current;
+            mTo[component] = Math.abs(value - current) < mDeadBand ? current : value;
+        }
+
+        private int interpolate(int component, int progress) {
+            int from = mFrom[component];
+            return from + (mTo[component] - from) * progress / PROGRESS_ONE;
+        }
+
+        private int progress(long nowNs) {
+            long elapsedNs = nowNs - mWindowStartNs;
+            if (!mStarted || elapsedNs >= mWindowNs) {
+                return PROGRESS_ONE;
+            }
+            return elapsedNs <= 0 ? 0 : (int) (elapsedNs * PROGRESS_ONE / mWindowNs);
+        }
+    }
+
+    /**
+     * Base of the filters integrating float state at evaluate time.
+     */
+    public abstract class Continuous implements AmbilightFilter {
+        protected static final int COMPONENTS = 3;
+        protected static final float NS_IN_SECOND = 1e9f;
+
+        protected final int mCount;
+        protected final float[] mValues;
+        protected final float[] mTargets;
+
+        protected long mLastNs = 0;
+        protected boolean mStarted = false;
+
+        public Continuous(int count) {
+            mCount = count;
+            mValues = new float[count * COMPONENTS];
+            mTargets = new float[count * COMPONENTS];
+        }
+
+        @Override
+        public void reset(final int[] colors, long nowNs) {
+            setTargets(colors);
+            System.arraycopy(mTargets, 0, mValues, 0, mTargets.length);
+            mLastNs = nowNs;
+            mStarted = true;
+        }
+
+        @Override
+        public void setTarget(final int[] colors, long nowNs) {
+            if (!mStarted) {
+                mLastNs = nowNs;
+                mStarted = true;
+            }
+            setTargets(colors);
+        }
+
+        @Override
+        public void evaluate(long nowNs, final int[] out) {
+            float dt = (nowNs - mLastNs) / NS_IN_SECOND;
+            if (dt > 0) {
+                step(dt);
+                mLastNs = nowNs;
+            }
+
+            final int count = Math.min(out.length, mCount);
+            for (int i = 0, c = 0; i < count; i++, c += COMPONENTS) {
+                out[i] = Color.rgb(clamp(mValues[c + 0]), clamp(mValues[c + 1]), clamp(mValues[c + 2]));
+            }
+        }
+
+        protected abstract void step(float dt);
+
+        protected void setTargets(final int[] colors) {
+            final int count = Math.min(colors.length, mCount);
+            for (int i = 0, c = 0; i < count; i++, c += COMPONENTS) {
+                int color = colors[i];
+                mTargets[c + 0] = Color.red(color);
+                mTargets[c + 1] = Color.green(color);
+                mTargets[c + 2] = Color.blue(color);
+            }
+        }
+
+        private static int clamp(float value) {
+            return Math.max(0, Math.min(255, Math.round(value)));
+        }
+    }
+
+    /**
+     * Exponential moving average with a time constant, frame rate independent.
+     */
+    public class Ema extends Continuous {
+        private final float mTimeConstant;
+
+        public Ema(int count, int timeConstantMs) {
+            super(count);
+            mTimeConstant = Math.max(timeConstantMs, 1) / 1000f;
+        }
+
+        @Override
+        protected void step(float dt) {
+            float alpha = 1f - (float) Math.exp(-dt / mTimeConstant);
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] += (mTargets[i] - mValues[i]) * alpha;
+            }
+        }
+    }
+
+    /**
+     * Critically damped spring, reaches the target in about smoothTimeMs without overshoot
+     * and keeps its velocity when the target moves, so it lags less than the EMA on ramps.
+     */
+    public class Spring extends Continuous {
+        private final float mOmega;
+        private final float[] mVelocities;
+
+        public Spring(int count, int smoothTimeMs) {
+            super(count);
+            mOmega = 2f / (Math.max(smoothTimeMs, 1) / 1000f);
+            mVelocities = new float[count * COMPONENTS];
+        }
+
+        @Override
+        public void reset(final int[] colors, long nowNs) {
+            super.reset(colors, nowNs);
+            for (int i = 0; i < mVelocities.length; i++) {
+                mVelocities[i] = 0;
+            }
+        }
+
+        @Override
+        protected void step(float dt) {
+            // closed form approximation of the damped spring, stable for any dt
+            float x = mOmega * dt;
+            float decay = 1f / (1f + x + 0.48f * x * x + 0.235f * x * x * x);
+            for (int i = 0; i < mValues.length; i++) {
+                float change = mValues[i] - mTargets[i];
+                float temp = (mVelocities[i] + mOmega * change) * dt;
+                mVelocities[i] = (mVelocities[i] - mOmega * temp) * decay;
+                mValues[i] = mTargets[i] + (change + temp) * decay;
+            }
+        }
+    }
+
+    /**
+     * One euro filter: a low pass whose cutoff rises with the speed of the signal, strong
+     * smoothing of noise on static colors and little lag on fast changes. Runs per target.
+     */
+    public class OneEuro implements AmbilightFilter {
+        private static final int COMPONENTS = 3;
+        private static final float NS_IN_SECOND = 1e9f;
+        private static final float DERIVATE_CUTOFF = 1f;
+
+        private final int mCount;
+        private final float mMinCutoff;
+        private final float mBeta;
+        private final float[] mValues;
+        private final float[] mDerivates;
+
+        private long mLastNs = 0;
+        private boolean mStarted = false;
+
+        public OneEuro(int count, float minCutoff, float beta) {
+            mCount = count;
+            mMinCutoff = minCutoff;
+            mBeta = beta;
+            mValues = new float[count * COMPONENTS];
+            mDerivates = new float[count * COMPONENTS];
+        }
+
+        @Override
+        public void reset(final int[] colors, long nowNs) {
+            final int count = Math.min(colors.length, mCount);
+            for (int i = 0, c = 0; i < count; i++, c += COMPONENTS) {
+                int color = colors[i];
+                mValues[c + 0] = Color.red(color);
+                mValues[c + 1] = Color.green(color);
+                mValues[c + 2] = Color.blue(color);
+            }
+            for (int i = 0; i < mDerivates.length; i++) {
+                mDerivates[i] = 0;
+            }
+            mLastNs = nowNs;
+            mStarted = true;
+        }
+
+        @Override
+        public void setTarget(final int[] colors, long nowNs) {
+            if (!mStarted) {
+                reset(colors, nowNs);
+                return;
+            }
+
+            float dt = (nowNs - mLastNs) / NS_IN_SECOND;
+            if (dt <= 0) {
+                return;
+            }
+            mLastNs = nowNs;
+
+            final float derivateAlpha = alpha(DERIVATE_CUTOFF, dt);
+            final int count = Math.min(colors.length, mCount);
+            for (int i = 0, c = 0; i < count; i++, c += COMPONENTS) {
+                int color = colors[i];
+                filter(c + 0, Color.red(color), dt, derivateAlpha);
+                filter(c + 1, Color.green(color), dt, derivateAlpha);
+                filter(c + 2, Color.blue(color), dt, derivateAlpha);
+            }
+        }
+
+        @Override
+        public void evaluate(long nowNs, final int[] out) {
+            final int count = Math.min(out.length, mCount);
+            for (int i = 0, c = 0; i < count; i++, c += COMPONENTS) {
+                out[i] = Color.rgb(Math.round(mValues[c + 0]), Math.round(mValues[c + 1]), Math.round(mValues[c + 2]));
+            }
+        }
+
+        private void filter(int component, float value, float dt, float derivateAlpha) {
+            float previous = mValues[component];
+            float derivate = mDerivates[component] + derivateAlpha * ((value - previous) / dt - mDerivates[component]);
+            mDerivates[component] = derivate;
+
+            float cutoff = mMinCutoff + mBeta * Math.abs(derivate);
+            mValues[component] = previous + alpha(cutoff, dt) * (value - previous);
+        }
+
+        private static float alpha(float cutoff, float dt) {
+            float tau = 1f / (2f * (float) Math.PI * cutoff);
+            return 1f / (1f + tau / dt);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.media.ambilight;
+
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Cheap per zone fingerprints of the readback pixels. Only every FINGERPRINT_STEP-th pixel
+ * of a zone (checkerboard) goes into the checksum and the lowest bits of each channel are
+ * dropped, so decoder noise does not mark a static zone as changed.
+ * A zone is dirty when its fingerprint differs from the previous frame.
+ */
+public class AmbilightFingerprints {
+    private static final int FINGERPRINT_STEP = 2;
+    private static final int RGBA_MASK = 0x00FCFCFC;
+    private static final int RGB565_MASK = 0xF7DE;
+
+    private final int[] mPrints;
+    private final boolean[] mDirty;
+    private boolean mInvalidated;
+
+    public AmbilightFingerprints(int zoneCount) {
+        mPrints = new int[zoneCount];
+        mDirty = new boolean[zoneCount];
+        invalidate();
+    }
+
+    public boolean isDirty(int zone) {
+        return mDirty[zone];
+    }
+
+    /**
+     * Marks every zone dirty for the next update, e.g. after the layout was recompiled.
+     */
+    public void invalidate() {
+        Arrays.fill(mDirty, true);
+        mInvalidated = true;
+    }
+
+    public int update(IntBuffer pixels, int pixelsPerRow, int[] zones) {
+        int dirty = 0;
+        for (int i = 0, z = 0; i < mPrints.length; i++, z += AmbilightZoneLayout.ZONE_STRIDE) {
+            int rectX = zones[z + AmbilightZoneLayout.ZONE_X];
+            int rectY = zones[z + AmbilightZoneLayout.ZONE_Y];
+            int rectWidth = zones[z + AmbilightZoneLayout.ZONE_WIDTH];
+            int rectHeight = zones[z + AmbilightZoneLayout.ZONE_HEIGHT];
+
+            int print = 1;
+            for (int y = 0; y < rectHeight; y++) {
+                int offset = pixelsPerRow * (rectY + y) + rectX;
+                for (int x = y % FINGERPRINT_STEP; x < rectWidth; x += FINGERPRINT_STEP) {
+                    print = 31 * print + (pixels.get(offset + x) & RGBA_MASK);
+                }
+            }
+            dirty += mark(i, print);
+        }
+        mInvalidated = false;
+        return dirty;
+    }
+
+    public int update(ShortBuffer pixels, int pixelsPerRow, int[] zones) {
+        int dirty = 0;
+        for (int i = 0, z = 0; i < mPrints.length; i++, z += AmbilightZoneLayout.ZONE_STRIDE) {
+            int rectX = zones[z + AmbilightZoneLayout.ZONE_X];
+            int rectY = zones[z + AmbilightZoneLayout.ZONE_Y];
+            int rectWidth = zones[z + AmbilightZoneLayout.ZONE_WIDTH];
+            int rectHeight = zones[z + AmbilightZoneLayout.ZONE_HEIGHT];
+
+            int print = 1;
+            for (int y = 0; y < rectHeight; y++) {
+                int offset = pixelsPerRow * (rectY + y) + rectX;
+                for (int x = y % FINGERPRINT_STEP; x < rectWidth; x += FINGERPRINT_STEP) {
+                    print = 31 * print + (pixels.get(offset + x) & RGB565_MASK);
+                }
+            }
+            dirty += mark(i, print);
+        }
+        mInvalidated = false;
+        return dirty;
+    }
+
+    private int mark(int zone, int print) {
+        boolean dirty = mInvalidated || mPrints[zone] != print;
+        mPrints[zone] = print;
+        mDirty[zone] = dirty;
+        return dirty ? 1 : 0;
+    }
+}
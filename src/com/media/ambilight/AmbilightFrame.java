@@ -0,0 +1,102 @@
+package com.media.ambilight;
+
+import com.media.ambilight.SurfaceGL.PixelReader;
+import com.media.ambilight.SurfaceGL.VideoConfig;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One readback of the video frame handed from the GL thread to the sampling thread.
+ * Frames are preallocated in a Pool and reference counted, the last release() puts
+ * the frame back into its pool.
+ */
+public class AmbilightFrame {
+    private final Pool mPool;
+    private final AtomicInteger mReferences = new AtomicInteger(0);
+
+    private final ByteBuffer mBuffer;
+    private final IntBuffer mPixels;
+    private final ShortBuffer mPixels565;
+
+    private int mReadFormat = VideoConfig.READ_FORMAT_RGBA8888;
+    private long mTimestampNs = 0;
+
+    private AmbilightFrame(Pool pool) {
+        mPool = pool;
+        mBuffer = ByteBuffer.allocateDirect(PixelReader.PIXELS_WIDTH * PixelReader.PIXELS_HEIGHT * VideoConfig.BYTES_PER_PIXEL);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mPixels = mBuffer.asIntBuffer();
+        mPixels565 = mBuffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public IntBuffer getPixels() {
+        return mPixels;
+    }
+
+    public ShortBuffer getPixels565() {
+        return mPixels565;
+    }
+
+    public int getReadFormat() {
+        return mReadFormat;
+    }
+
+    public void setReadFormat(int readFormat) {
+        mReadFormat = readFormat;
+    }
+
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    public void setTimestampNs(long timestampNs) {
+        mTimestampNs = timestampNs;
+    }
+
+    public AmbilightFrame retain() {
+        mReferences.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        int references = mReferences.decrementAndGet();
+        if (references == 0) {
+            mPool.recycle(this);
+        } else if (references < 0) {
+            throw new IllegalStateException("AmbilightFrame released too many times");
+        }
+    }
+
+    /**
+     * Fixed set of frames, acquire() returns null when all of them are in use.
+     */
+    public static class Pool {
+        private final ArrayBlockingQueue<AmbilightFrame> mFree;
+
+        public Pool(int size) {
+            mFree = new ArrayBlockingQueue<AmbilightFrame>(size);
+            for (int i = 0; i < size; i++) {
+                mFree.offer(new AmbilightFrame(this));
+            }
+        }
+
+        // the frame comes with one reference owned by the caller
+        public AmbilightFrame acquire() {
+            AmbilightFrame frame = mFree.poll();
+            return frame != null ? frame.retain() : null;
+        }
+
+        private void recycle(AmbilightFrame frame) {
+            mFree.offer(frame);
+        }
+    }
+}
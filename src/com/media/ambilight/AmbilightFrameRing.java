@@ -0,0 +1,63 @@
+package com.media.ambilight;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free single producer / single consumer ring of frames. The producer hands its frame
+ * reference over to the ring, the consumer owns what poll() returns and releases it.
+ */
+public class AmbilightFrameRing {
+    private final AmbilightFrame[] mFrames;
+    private final int mMask;
+
+    // next index to poll, written by the consumer only
+    private final AtomicInteger mHead = new AtomicInteger(0);
+    // next index to offer, written by the producer only
+    private final AtomicInteger mTail = new AtomicInteger(0);
+
+    public AmbilightFrameRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1);
+        mFrames = new AmbilightFrame[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Producer thread only.
+     *
+     * @return false if the ring is full, the caller keeps its reference then
+     */
+    public boolean offer(AmbilightFrame frame) {
+        final int tail = mTail.get();
+        if (tail - mHead.get() == mFrames.length) {
+            return false;
+        }
+        mFrames[tail & mMask] = frame;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public AmbilightFrame poll() {
+        final int head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        final int index = head & mMask;
+        AmbilightFrame frame = mFrames[index];
+        mFrames[index] = null;
+        mHead.lazySet(head + 1);
+        return frame;
+    }
+
+    /**
+     * Consumer thread only, releases whatever is left.
+     */
+    public void clear() {
+        AmbilightFrame frame;
+        while ((frame = poll()) != null) {
+            frame.release();
+        }
+    }
+}
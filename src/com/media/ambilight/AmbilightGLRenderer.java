@@ -6,12 +6,16 @@ import com.media.ambilight.SurfaceGL.PixelReader;
 import com.media.ambilight.SurfaceGL.VideoConfig;
 
 import android.opengl.GLES20;
+import android.util.Log;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 public class AmbilightGLRenderer extends GLRenderer {
+    private static final String TAG = AmbilightGLRenderer.class.getSimpleName();
+    private static final long QUIT_TIMEOUT_MS = 1000;
 
     public static final String VERTEX_SHADER =
             "attribute vec4 aPosition;\n"
@@ -34,7 +38,8 @@ public class AmbilightGLRenderer extends GLRenderer {
 
     public interface AmbilightGLRendererCallback {
         public void onAmbilightColorsVariants(final int[][] colors);
-        public void onAmbilightColors(final int[] colors);
+        // timestampNs is the presentation time of the sampled video frame
+        public void onAmbilightColors(final int[] colors, long timestampNs);
         public void onAmbilightCreated();
         public void onAmbilightDestroyed();
     }
@@ -43,6 +48,14 @@ public class AmbilightGLRenderer extends GLRenderer {
     private IntBuffer mTextureBuffer;
     private int mTextureIDExternal = 0;
     private AmbilightGLRendererCallback mCallback;
+    private AmbilightRateGovernor mGovernor = AmbilightSettings.AMBILIGHT_GOVERNOR_MAX_INTERVAL > 1
+            ? new AmbilightRateGovernor(AmbilightSettings.AMBILIGHT_GOVERNOR_MAX_INTERVAL) : null;
+
+    // the GL thread only reads back into pooled frames, zones are computed on the sampling thread
+    private AmbilightFrame.Pool mFramePool = new AmbilightFrame.Pool(AmbilightSettings.AMBILIGHT_FRAMES);
+    private AmbilightFrameRing mFrameRing = new AmbilightFrameRing(AmbilightSettings.AMBILIGHT_FRAMES);
+    private AmbilightPixelReader mSampler;
+    private SamplingThread mSamplingThread;
 
     public AmbilightGLRenderer(int width, int height, int textureIDExternal, AmbilightGLRendererCallback callback) {
         if (width == 0 || height == 0) {
@@ -63,9 +76,13 @@ public class AmbilightGLRenderer extends GLRenderer {
 
         mTextureIDExternal = textureIDExternal;
         mCallback = callback;
-        mPixelReader = new AmbilightPixelReader();
+        mPixelReader = new PixelReader();
+        mSampler = new AmbilightPixelReader();
 
         create(AmbilightGLRenderer.FRAGMENT_AMBILIGHT_SHADER);
+
+        mSamplingThread = new SamplingThread();
+        mSamplingThread.start();
     }
 
     @Override
@@ -111,6 +128,12 @@ public class AmbilightGLRenderer extends GLRenderer {
 
     @Override
     public void release() {
+        // the sampling thread drains the ring itself, it may still run if quit() timed out
+        if (mSamplingThread != null) {
+            mSamplingThread.quit();
+            mSamplingThread = null;
+        }
+
         if (mFrameBuffer != null) {
             GLES20.glDeleteRenderbuffers(1, mFrameBuffer, 0);
             checkGlError("glDeleteRenderbuffers");
@@ -128,21 +151,45 @@ public class AmbilightGLRenderer extends GLRenderer {
             return;
         }
 
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
-        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+        if (mGovernor != null && !mGovernor.shouldSample()) {
+            // no readback on this frame, the output ticker keeps evaluating the last colors
             return;
         }
 
-        drawSetup(TARGET_TEXTURE_ID, mTextureIDExternal);
-        drawImpl();
+        // all frames are still queued or being sampled, skip this one
+        AmbilightFrame frame = mFramePool.acquire();
+        if (frame == null) {
+            return;
+        }
 
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-        checkGlError("glBindFramebuffer0");
+        boolean published = false;
+        try {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
+            int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+            if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                return;
+            }
 
-        if (mCallback != null) {
-            mCallback.onAmbilightColors(mPixelReader.getColors());
-            //mCallback.onAmbilightColorsVariants(mPixelReader.getVariantsColors());
+            mPixelReader.attach(frame);
+            drawSetup(TARGET_TEXTURE_ID, mTextureIDExternal);
+            drawImpl();
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            checkGlError("glBindFramebuffer0");
+
+            frame.setReadFormat(mPixelReader.getReadFormat());
+            frame.setTimestampNs(mFrameTimestampNs);
+            published = mFrameRing.offer(frame);
+        } finally {
+            // the frame belongs to the sampling thread now
+            mPixelReader.detach();
+            if (!published) {
+                frame.release();
+            }
+        }
+
+        if (mSamplingThread != null) {
+            LockSupport.unpark(mSamplingThread);
         }
     }
 
@@ -164,38 +211,95 @@ public class AmbilightGLRenderer extends GLRenderer {
         }
     }
 
-    private class AmbilightPixelReader extends PixelReader {
-        private int[] mAvergeColors = new int[AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS];
-        private int[][] mVariantColors = new int[AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS][];
+    private class AmbilightPixelReader extends PixelReader implements AmbilightWorkers.ZoneTask {
+        private AmbilightZoneLayout mLayout = AmbilightZoneLayout.fromSettings();
+        private int[] mZones = mLayout.compile(PIXELS_WIDTH, PIXELS_HEIGHT);
+
+        private int[] mAvergeColors = new int[mLayout.getZoneCount()];
+        private int[][] mVariantColors = new int[mLayout.getZoneCount()][];
+        private AmbilightIntegralImage mIntegralImage = new AmbilightIntegralImage(PIXELS_WIDTH, PIXELS_HEIGHT,
+                AmbilightSettings.AMBILIGHT_COLOR_MODE == AmbilightSettings.AMBILIGHT_COLOR_MODE_LINEAR);
+        private AmbilightWorkers mWorkers = new AmbilightWorkers(AmbilightSettings.AMBILIGHT_PARALLEL_ZONES);
+        private AmbilightHistogram[] mHistograms = createHistograms();
+        private AmbilightEdgeWeights mEdgeWeights = createEdgeWeights();
+        private AmbilightFingerprints mFingerprints = new AmbilightFingerprints(mLayout.getZoneCount());
+        private AmbilightLetterbox mLetterbox = AmbilightSettings.AMBILIGHT_LETTERBOX
+                ? new AmbilightLetterbox(AmbilightSettings.AMBILIGHT_LETTERBOX_INTERVAL) : null;
+
+        public AmbilightPixelReader() {
+            // samples the pooled frames only, nothing is read back into it
+            super(VideoConfig.READ_FORMAT, false);
+        }
 
-        @Override
-        public void fill() {
-            super.fill();
-
-            int border = AmbilightSettings.AMBILIGHT_BORDER_WIDTH;
-            if (AmbilightSettings.AMBILIGHT_CHANNELS == 2 && AmbilightSettings.AMBILIGHT_SUB_CHANNELS == 1) {
-                if (AmbilightSettings.AMBILIGHT_TEST) {
-                    mAvergeColors[0] = AmbilightSettings.AMBILIGHT_TEST_COLORS[0];
-                    mAvergeColors[1] = AmbilightSettings.AMBILIGHT_TEST_COLORS[1];
-                } else {
-                    mAvergeColors[0] = computeColor(0, 0, border, PIXELS_HEIGHT);
-                    mAvergeColors[1] = computeColor(PIXELS_WIDTH - border, 0, border, PIXELS_HEIGHT);
-                    //mVariantColors[0] = computeColors(0, 0, border, PIXELS_HEIGHT);
-                    //mVariantColors[1] = computeColors(PIXELS_WIDTH - border, 0, border, PIXELS_HEIGHT);
+        private AmbilightHistogram[] createHistograms() {
+            // one per worker, histograms are not thread safe
+            AmbilightHistogram[] histograms = new AmbilightHistogram[mWorkers.getWorkerCount()];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new AmbilightHistogram();
+            }
+            return histograms;
+        }
+
+        private AmbilightEdgeWeights createEdgeWeights() {
+            if (AmbilightSettings.AMBILIGHT_EDGE_WEIGHT == AmbilightEdgeWeights.FALLOFF_NONE) {
+                return null;
+            }
+            AmbilightEdgeWeights weights = new AmbilightEdgeWeights(AmbilightSettings.AMBILIGHT_EDGE_WEIGHT,
+                    AmbilightSettings.AMBILIGHT_COLOR_MODE == AmbilightSettings.AMBILIGHT_COLOR_MODE_LINEAR);
+            weights.compile(mLayout);
+            return weights;
+        }
+
+        public void sample(AmbilightFrame frame) {
+            attach(frame);
+            mReadFormat = frame.getReadFormat();
+
+            if (AmbilightSettings.AMBILIGHT_TEST) {
+                for (int i = 0; i < mAvergeColors.length; i++) {
+                    mAvergeColors[i] = AmbilightSettings.AMBILIGHT_TEST_COLORS[i % AmbilightSettings.AMBILIGHT_TEST_COLORS.length];
+                }
+                return;
+            }
+
+            if (mLetterbox != null && mLetterbox.update(this)) {
+                // remap the zones to the active picture area
+                mLayout.compile(mLetterbox.getX(), mLetterbox.getY(),
+                        mLetterbox.getWidth(PIXELS_WIDTH), mLetterbox.getHeight(PIXELS_HEIGHT));
+                if (mEdgeWeights != null) {
+                    mEdgeWeights.compile(mLayout);
                 }
-            } else if (AmbilightSettings.AMBILIGHT_CHANNELS == 2 && AmbilightSettings.AMBILIGHT_SUB_CHANNELS == 2) {
-                if (AmbilightSettings.AMBILIGHT_TEST) {
-                    mAvergeColors[0] = AmbilightSettings.AMBILIGHT_TEST_COLORS[0];
-                    mAvergeColors[1] = AmbilightSettings.AMBILIGHT_TEST_COLORS[1];
-                    mAvergeColors[2] = AmbilightSettings.AMBILIGHT_TEST_COLORS[2];
-                    mAvergeColors[3] = AmbilightSettings.AMBILIGHT_TEST_COLORS[3];
+                mFingerprints.invalidate();
+            }
+
+            // unchanged zones keep the color of the previous frame
+            int dirty = isRGB565() ? mFingerprints.update(mPixels565, PIXELS_WIDTH, mZones)
+                    : mFingerprints.update(mPixels, PIXELS_WIDTH, mZones);
+            if (dirty == 0) {
+                return;
+            }
+
+            if (mEdgeWeights == null && (AmbilightSettings.AMBILIGHT_COLOR_MODE == AmbilightSettings.AMBILIGHT_COLOR_MODE_AVERAGE
+                    || AmbilightSettings.AMBILIGHT_COLOR_MODE == AmbilightSettings.AMBILIGHT_COLOR_MODE_LINEAR)) {
+                if (isRGB565()) {
+                    mIntegralImage.build(mPixels565, PIXELS_WIDTH);
                 } else {
-                    mAvergeColors[0] = computeColor(0, PIXELS_HEIGHT / 2, border, PIXELS_HEIGHT / 2);
-                    mAvergeColors[1] = computeColor(0, 0, border, PIXELS_HEIGHT / 2);
-                    mAvergeColors[2] = computeColor(PIXELS_WIDTH - border, 0, border, PIXELS_HEIGHT / 2);
-                    mAvergeColors[3] = computeColor(PIXELS_WIDTH - border, PIXELS_HEIGHT / 2, border, PIXELS_HEIGHT / 2);
+                    mIntegralImage.build(mPixels, PIXELS_WIDTH);
                 }
             }
+
+            mWorkers.run(this, mAvergeColors.length);
+        }
+
+        @Override
+        public void computeZone(int worker, int zone) {
+            if (!mFingerprints.isDirty(zone)) {
+                return;
+            }
+            final int[] zones = mZones;
+            final int z = zone * AmbilightZoneLayout.ZONE_STRIDE;
+            mAvergeColors[zone] = computeColor(mHistograms[worker], zone, zones[z + AmbilightZoneLayout.ZONE_X],
+                    zones[z + AmbilightZoneLayout.ZONE_Y], zones[z + AmbilightZoneLayout.ZONE_WIDTH],
+                    zones[z + AmbilightZoneLayout.ZONE_HEIGHT]);
         }
 
         @Override
@@ -208,19 +312,82 @@ public class AmbilightGLRenderer extends GLRenderer {
             return mVariantColors;
         }
 
-        protected int computeColor(int rectX, int rectY, int rectWidth, int rectHeight) {
-            int bytesPerRow = PIXELS_WIDTH * VideoConfig.BYTES_PER_PIXEL;
-            if (AmbilightSettings.AMBILIGHT_USE_DOMINANT_COLORS) {
-                return AmbilightColorUtil.computeDominantColor(mBuffer.array(), rectX, rectY, rectWidth, rectHeight,
-                        VideoConfig.BYTES_PER_PIXEL, bytesPerRow);
+        protected int computeColor(AmbilightHistogram histogram, int zone, int rectX, int rectY, int rectWidth, int rectHeight) {
+            if (AmbilightSettings.AMBILIGHT_COLOR_MODE == AmbilightSettings.AMBILIGHT_COLOR_MODE_DOMINANT) {
+                if (isRGB565()) {
+                    return histogram.computeDominantColor(mPixels565, rectX, rectY, rectWidth, rectHeight, PIXELS_WIDTH);
+                }
+                return histogram.computeDominantColor(mPixels, rectX, rectY, rectWidth, rectHeight, PIXELS_WIDTH);
+            }
+            if (AmbilightSettings.AMBILIGHT_COLOR_MODE == AmbilightSettings.AMBILIGHT_COLOR_MODE_MEDIAN) {
+                final int percentile = AmbilightSettings.AMBILIGHT_COLOR_PERCENTILE;
+                if (isRGB565()) {
+                    return AmbilightColorUtil.gainColor(histogram.computePercentileColor(mPixels565,
+                            rectX, rectY, rectWidth, rectHeight, PIXELS_WIDTH, percentile));
+                }
+                return AmbilightColorUtil.gainColor(histogram.computePercentileColor(mPixels,
+                        rectX, rectY, rectWidth, rectHeight, PIXELS_WIDTH, percentile));
+            }
+            if (mEdgeWeights != null) {
+                if (isRGB565()) {
+                    return AmbilightColorUtil.gainColor(mEdgeWeights.computeColor(mPixels565, PIXELS_WIDTH, zone));
+                }
+                return AmbilightColorUtil.gainColor(mEdgeWeights.computeColor(mPixels, PIXELS_WIDTH, zone));
+            }
+            return AmbilightColorUtil.gainColor(mIntegralImage.computeAverageColor(rectX, rectY, rectWidth, rectHeight));
+        }
+    }
+
+    private class SamplingThread extends Thread {
+        private volatile boolean mRunning = true;
+
+        public SamplingThread() {
+            super("AmbilightSampling");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                AmbilightFrame frame = mFrameRing.poll();
+                if (frame == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                long timestampNs = frame.getTimestampNs();
+                try {
+                    mSampler.sample(frame);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "sampling failed", e);
+                    continue;
+                } finally {
+                    mSampler.detach();
+                    frame.release();
+                }
+
+                if (mGovernor != null) {
+                    mGovernor.update(mSampler.getColors());
+                }
+
+                if (mCallback != null) {
+                    mCallback.onAmbilightColors(mSampler.getColors(), timestampNs);
+                    //mCallback.onAmbilightColorsVariants(mSampler.getVariantsColors());
+                }
             }
-            return AmbilightColorUtil.computeAverageGainedColors(mBuffer.array(), rectX, rectY, rectWidth, rectHeight,
-                    VideoConfig.BYTES_PER_PIXEL, bytesPerRow);
+
+            // consumer side of the ring, so the frames still queued are released here
+            mFrameRing.clear();
         }
 
-        protected int[] computeColors(int rectX, int rectY, int rectWidth, int rectHeight) {
-            return AmbilightColorUtil.computeDominantColors(mBuffer.array(), rectX, rectY, rectWidth, rectHeight,
-                    VideoConfig.BYTES_PER_PIXEL, PIXELS_WIDTH * VideoConfig.BYTES_PER_PIXEL);
+        public void quit() {
+            mRunning = false;
+            LockSupport.unpark(this);
+            try {
+                join(QUIT_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 }
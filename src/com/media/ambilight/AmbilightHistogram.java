@@ -0,0 +1,289 @@
+package com.media.ambilight;
+
+import android.graphics.Color;
+
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Dominant color of a zone straight from the readback pixels. Pixels are quantized to
+ * 4 bits per channel into a reusable histogram, then the most populated light vibrant,
+ * vibrant, dark vibrant and light muted buckets compete the same way the Palette swatches did.
+ * Only the touched buckets are visited and cleared, so nothing is allocated per frame.
+ *
+ * Also computes per channel median (or any percentile) colors with 256-bin counting
+ * histograms, robust to small bright subtitles or logos at the screen edge.
+ *
+ * Not thread safe, use one instance per sampling thread.
+ */
+public class AmbilightHistogram {
+    private static final int QUANT_BITS = 4;
+    private static final int QUANT_SHIFT = 8 - QUANT_BITS;
+    private static final int BUCKETS = 1 << (QUANT_BITS * 3);
+
+    private static final int TARGET_LIGHT_VIBRANT = 0;
+    private static final int TARGET_VIBRANT = 1;
+    private static final int TARGET_DARK_VIBRANT = 2;
+    private static final int TARGET_LIGHT_MUTED = 3;
+    private static final int TARGETS = 4;
+
+    // HSL bounds of the Palette targets, scaled to 0..255
+    private static final int LUMA_LIGHT_MIN = 140;  // 0.55
+    private static final int LUMA_NORMAL_MIN = 77;  // 0.3
+    private static final int LUMA_NORMAL_MAX = 179; // 0.7
+    private static final int LUMA_DARK_MAX = 115;   // 0.45
+    private static final int SATURATION_VIBRANT_MIN = 89; // 0.35
+    private static final int SATURATION_MUTED_MAX = 102;  // 0.4
+
+    private final int[] mCounts = new int[BUCKETS];
+    private final int[] mRed = new int[BUCKETS];
+    private final int[] mGreen = new int[BUCKETS];
+    private final int[] mBlue = new int[BUCKETS];
+
+    private final int[] mTouched = new int[BUCKETS];
+    private int mTouchedCount = 0;
+
+    private final int[] mTargetBuckets = new int[TARGETS];
+    private final int[] mTargetPopulations = new int[TARGETS];
+
+    private final int[] mRedLevels = new int[256];
+    private final int[] mGreenLevels = new int[256];
+    private final int[] mBlueLevels = new int[256];
+
+    public int computePercentileColor(IntBuffer pixels, int rectX, int rectY, int rectWidth, int rectHeight,
+            int pixelsPerRow, int percentile) {
+        final int[] reds = mRedLevels;
+        final int[] greens = mGreenLevels;
+        final int[] blues = mBlueLevels;
+
+        for (int y = 0; y < rectHeight; y++) {
+            int offset = pixelsPerRow * (rectY + y) + rectX;
+            for (int x = 0; x < rectWidth; x++) {
+                int rgba = pixels.get(offset + x);
+                reds[rgba & 0xFF]++;
+                greens[(rgba >> 8) & 0xFF]++;
+                blues[(rgba >> 16) & 0xFF]++;
+            }
+        }
+
+        return pickPercentile(rectWidth * rectHeight, percentile);
+    }
+
+    public int computePercentileColor(ShortBuffer pixels, int rectX, int rectY, int rectWidth, int rectHeight,
+            int pixelsPerRow, int percentile) {
+        final int[] expand5 = AmbilightColorUtil.RGB565_5_TO_8;
+        final int[] expand6 = AmbilightColorUtil.RGB565_6_TO_8;
+        final int[] reds = mRedLevels;
+        final int[] greens = mGreenLevels;
+        final int[] blues = mBlueLevels;
+
+        for (int y = 0; y < rectHeight; y++) {
+            int offset = pixelsPerRow * (rectY + y) + rectX;
+            for (int x = 0; x < rectWidth; x++) {
+                int rgb565 = pixels.get(offset + x);
+                reds[expand5[(rgb565 >> 11) & 0x1F]]++;
+                greens[expand6[(rgb565 >> 5) & 0x3F]]++;
+                blues[expand5[rgb565 & 0x1F]]++;
+            }
+        }
+
+        return pickPercentile(rectWidth * rectHeight, percentile);
+    }
+
+    public int computeDominantColor(IntBuffer pixels, int rectX, int rectY, int rectWidth, int rectHeight,
+            int pixelsPerRow) {
+        final int[] counts = mCounts;
+        final int[] reds = mRed;
+        final int[] greens = mGreen;
+        final int[] blues = mBlue;
+
+        int rSum = 0;
+        int gSum = 0;
+        int bSum = 0;
+
+        for (int y = 0; y < rectHeight; y++) {
+            int offset = pixelsPerRow * (rectY + y) + rectX;
+            for (int x = 0; x < rectWidth; x++) {
+                int rgba = pixels.get(offset + x);
+                int r = rgba & 0xFF;
+                int g = (rgba >> 8) & 0xFF;
+                int b = (rgba >> 16) & 0xFF;
+
+                int bucket = ((r >> QUANT_SHIFT) << (QUANT_BITS * 2)) | ((g >> QUANT_SHIFT) << QUANT_BITS) | (b >> QUANT_SHIFT);
+                if (counts[bucket]++ == 0) {
+                    mTouched[mTouchedCount++] = bucket;
+                }
+                reds[bucket] += r;
+                greens[bucket] += g;
+                blues[bucket] += b;
+
+                rSum += r;
+                gSum += g;
+                bSum += b;
+            }
+        }
+
+        return pickDominant(rSum, gSum, bSum, rectWidth * rectHeight);
+    }
+
+    public int computeDominantColor(ShortBuffer pixels, int rectX, int rectY, int rectWidth, int rectHeight,
+            int pixelsPerRow) {
+        final int[] expand5 = AmbilightColorUtil.RGB565_5_TO_8;
+        final int[] expand6 = AmbilightColorUtil.RGB565_6_TO_8;
+        final int[] counts = mCounts;
+        final int[] reds = mRed;
+        final int[] greens = mGreen;
+        final int[] blues = mBlue;
+
+        int rSum = 0;
+        int gSum = 0;
+        int bSum = 0;
+
+        for (int y = 0; y < rectHeight; y++) {
+            int offset = pixelsPerRow * (rectY + y) + rectX;
+            for (int x = 0; x < rectWidth; x++) {
+                int rgb565 = pixels.get(offset + x);
+                int r = expand5[(rgb565 >> 11) & 0x1F];
+                int g = expand6[(rgb565 >> 5) & 0x3F];
+                int b = expand5[rgb565 & 0x1F];
+
+                int bucket = ((r >> QUANT_SHIFT) << (QUANT_BITS * 2)) | ((g >> QUANT_SHIFT) << QUANT_BITS) | (b >> QUANT_SHIFT);
+                if (counts[bucket]++ == 0) {
+                    mTouched[mTouchedCount++] = bucket;
+                }
+                reds[bucket] += r;
+                greens[bucket] += g;
+                blues[bucket] += b;
+
+                rSum += r;
+                gSum += g;
+                bSum += b;
+            }
+        }
+
+        return pickDominant(rSum, gSum, bSum, rectWidth * rectHeight);
+    }
+
+    private int pickDominant(int rSum, int gSum, int bSum, int numberOfPixels) {
+        int color = pickDominant();
+        if (color != Color.BLACK) {
+            return color;
+        }
+
+        if (numberOfPixels <= 0) {
+            return Color.BLACK;
+        }
+        return Color.rgb(rSum / numberOfPixels, gSum / numberOfPixels, bSum / numberOfPixels);
+    }
+
+    private int pickDominant() {
+        final int[] counts = mCounts;
+        final int[] buckets = mTargetBuckets;
+        final int[] populations = mTargetPopulations;
+
+        for (int i = 0; i < TARGETS; i++) {
+            buckets[i] = -1;
+            populations[i] = 0;
+        }
+
+        for (int i = 0; i < mTouchedCount; i++) {
+            int bucket = mTouched[i];
+            int count = counts[bucket];
+
+            int r = mRed[bucket] / count;
+            int g = mGreen[bucket] / count;
+            int b = mBlue[bucket] / count;
+
+            int target = classify(r, g, b);
+            if (target >= 0 && count > populations[target]) {
+                populations[target] = count;
+                buckets[target] = bucket;
+            }
+        }
+
+        // same preference as the Palette based version: muted swatches count half
+        int color = Color.BLACK;
+        int population = 0;
+        for (int target = 0; target < TARGETS; target++) {
+            int bucket = buckets[target];
+            if (bucket < 0) {
+                continue;
+            }
+            int p = target == TARGET_LIGHT_MUTED ? populations[target] / 2 : populations[target];
+            if (p > population) {
+                population = p;
+                int count = counts[bucket];
+                color = Color.rgb(mRed[bucket] / count, mGreen[bucket] / count, mBlue[bucket] / count);
+            }
+        }
+
+        clear();
+        return color;
+    }
+
+    private int pickPercentile(int numberOfPixels, int percentile) {
+        if (numberOfPixels <= 0) {
+            return Color.BLACK;
+        }
+
+        int rank = (numberOfPixels - 1) * Math.max(0, Math.min(percentile, 100)) / 100;
+        int r = findLevel(mRedLevels, rank);
+        int g = findLevel(mGreenLevels, rank);
+        int b = findLevel(mBlueLevels, rank);
+
+        Arrays.fill(mRedLevels, 0);
+        Arrays.fill(mGreenLevels, 0);
+        Arrays.fill(mBlueLevels, 0);
+
+        return Color.rgb(r, g, b);
+    }
+
+    private static int findLevel(int[] levels, int rank) {
+        int count = 0;
+        for (int level = 0; level < levels.length; level++) {
+            count += levels[level];
+            if (count > rank) {
+                return level;
+            }
+        }
+        return levels.length - 1;
+    }
+
+    private static int classify(int r, int g, int b) {
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+
+        // HSL lightness and saturation in 0..255
+        int sum = max + min;
+        int luma = sum >> 1;
+        int divider = 255 - Math.abs(sum - 255);
+        int saturation = divider > 0 ? (max - min) * 255 / divider : 0;
+
+        if (saturation >= SATURATION_VIBRANT_MIN) {
+            if (luma >= LUMA_LIGHT_MIN) {
+                return TARGET_LIGHT_VIBRANT;
+            }
+            if (luma >= LUMA_NORMAL_MIN && luma <= LUMA_NORMAL_MAX) {
+                return TARGET_VIBRANT;
+            }
+            if (luma <= LUMA_DARK_MAX) {
+                return TARGET_DARK_VIBRANT;
+            }
+        } else if (saturation <= SATURATION_MUTED_MAX && luma >= LUMA_LIGHT_MIN) {
+            return TARGET_LIGHT_MUTED;
+        }
+        return -1;
+    }
+
+    private void clear() {
+        for (int i = 0; i < mTouchedCount; i++) {
+            int bucket = mTouched[i];
+            mCounts[bucket] = 0;
+            mRed[bucket] = 0;
+            mGreen[bucket] = 0;
+            mBlue[bucket] = 0;
+        }
+        mTouchedCount = 0;
+    }
+}
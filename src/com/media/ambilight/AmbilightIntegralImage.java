@@ -0,0 +1,142 @@
+package com.media.ambilight;
+
+import android.graphics.Color;
+
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Summed-area table over the RGBA or RGB565 readback pixels. Built once per frame, after that
+ * the average color of any rectangle costs four lookups per channel.
+ * In linear mode the sums are kept in 16 bit linear light (see AmbilightColorUtil.SRGB_TO_LINEAR).
+ */
+public class AmbilightIntegralImage {
+    private static final int CHANNELS = 3;
+    private static final int[] IDENTITY = new int[256];
+
+    static {
+        for (int i = 0; i < IDENTITY.length; i++) {
+            IDENTITY[i] = i;
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRowStride;
+    private final boolean mLinear;
+
+    // (width + 1) x (height + 1) cells of interleaved r, g, b sums, first row and column are zero.
+    // int is enough for 255 * width * height up to ~8M pixels (32K pixels in linear mode),
+    // readback is far smaller.
+    private final int[] mSums;
+
+    public AmbilightIntegralImage(int width, int height) {
+        this(width, height, false);
+    }
+
+    public AmbilightIntegralImage(int width, int height, boolean linear) {
+        mLinear = linear;
+        mWidth = width;
+        mHeight = height;
+        mRowStride = (width + 1) * CHANNELS;
+        mSums = new int[(height + 1) * mRowStride];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public boolean isLinear() {
+        return mLinear;
+    }
+
+    public void build(IntBuffer pixels, int pixelsPerRow) {
+        final int[] sums = mSums;
+        final int[] values = mLinear ? AmbilightColorUtil.SRGB_TO_LINEAR : IDENTITY;
+
+        for (int y = 0; y < mHeight; y++) {
+            int offset = pixelsPerRow * y;
+            int above = y * mRowStride + CHANNELS;
+            int current = above + mRowStride;
+
+            int rRow = 0;
+            int gRow = 0;
+            int bRow = 0;
+
+            for (int x = 0; x < mWidth; x++) {
+                int rgba = pixels.get(offset + x);
+                rRow += values[rgba & 0xFF];
+                gRow += values[(rgba >> 8) & 0xFF];
+                bRow += values[(rgba >> 16) & 0xFF];
+
+                sums[current + 0] = sums[above + 0] + rRow;
+                sums[current + 1] = sums[above + 1] + gRow;
+                sums[current + 2] = sums[above + 2] + bRow;
+
+                above += CHANNELS;
+                current += CHANNELS;
+            }
+        }
+    }
+
+    public void build(ShortBuffer pixels, int pixelsPerRow) {
+        final int[] sums = mSums;
+        final int[] values = mLinear ? AmbilightColorUtil.SRGB_TO_LINEAR : IDENTITY;
+        final int[] expand5 = AmbilightColorUtil.RGB565_5_TO_8;
+        final int[] expand6 = AmbilightColorUtil.RGB565_6_TO_8;
+
+        for (int y = 0; y < mHeight; y++) {
+            int offset = pixelsPerRow * y;
+            int above = y * mRowStride + CHANNELS;
+            int current = above + mRowStride;
+
+            int rRow = 0;
+            int gRow = 0;
+            int bRow = 0;
+
+            for (int x = 0; x < mWidth; x++) {
+                int rgb565 = pixels.get(offset + x);
+                rRow += values[expand5[(rgb565 >> 11) & 0x1F]];
+                gRow += values[expand6[(rgb565 >> 5) & 0x3F]];
+                bRow += values[expand5[rgb565 & 0x1F]];
+
+                sums[current + 0] = sums[above + 0] + rRow;
+                sums[current + 1] = sums[above + 1] + gRow;
+                sums[current + 2] = sums[above + 2] + bRow;
+
+                above += CHANNELS;
+                current += CHANNELS;
+            }
+        }
+    }
+
+    public int computeAverageColor(int rectX, int rectY, int rectWidth, int rectHeight) {
+        int numberOfPixels = rectWidth * rectHeight;
+        if (numberOfPixels <= 0) {
+            return Color.BLACK;
+        }
+
+        int top = rectY * mRowStride + rectX * CHANNELS;
+        int bottom = (rectY + rectHeight) * mRowStride + rectX * CHANNELS;
+        int right = rectWidth * CHANNELS;
+
+        final int[] sums = mSums;
+        int rSum = sums[bottom + right + 0] - sums[bottom + 0] - sums[top + right + 0] + sums[top + 0];
+        int gSum = sums[bottom + right + 1] - sums[bottom + 1] - sums[top + right + 1] + sums[top + 1];
+        int bSum = sums[bottom + right + 2] - sums[bottom + 2] - sums[top + right + 2] + sums[top + 2];
+
+        if (mLinear) {
+            return AmbilightColorUtil.linearToColor(rSum / numberOfPixels, gSum / numberOfPixels, bSum / numberOfPixels);
+        }
+
+        int r = (rSum / numberOfPixels) & 0xFF;
+        int g = (gSum / numberOfPixels) & 0xFF;
+        int b = (bSum / numberOfPixels) & 0xFF;
+
+        return Color.rgb(r, g, b);
+    }
+}
@@ -0,0 +1,135 @@
+package com.media.ambilight;
+
+import com.media.ambilight.SurfaceGL.PixelReader;
+
+import android.graphics.Color;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Black bar (letterbox / pillarbox) detection over the readback pixels.
+ * Scans only every N-th frame, bars are counted from each edge inward and a new crop is
+ * taken only after it was detected on HYSTERESIS consecutive scans, so fades, dark scenes
+ * and subtitles in the bars don't make the zones jump. Fully black frames are ignored.
+ */
+public class AmbilightLetterbox {
+    private static final String TAG = AmbilightLetterbox.class.getSimpleName();
+
+    private static final int BLACK_LEVEL = 24;
+    private static final int HYSTERESIS = 3;
+    // at most a third of the picture per side is treated as a bar
+    private static final int MAX_BAR_DIVIDER = 3;
+
+    private static final int LEFT = 0;
+    private static final int TOP = 1;
+    private static final int RIGHT = 2;
+    private static final int BOTTOM = 3;
+
+    private final int mInterval;
+    private int mFrame = 0;
+
+    private final int[] mCrop = new int[4];
+    private final int[] mCandidate = new int[4];
+    private final int[] mDetected = new int[4];
+    private int mCandidateCount = 0;
+
+    public AmbilightLetterbox(int interval) {
+        mInterval = Math.max(interval, 1);
+    }
+
+    public int getX() {
+        return mCrop[LEFT];
+    }
+
+    public int getY() {
+        return mCrop[TOP];
+    }
+
+    public int getWidth(int width) {
+        return width - mCrop[LEFT] - mCrop[RIGHT];
+    }
+
+    public int getHeight(int height) {
+        return height - mCrop[TOP] - mCrop[BOTTOM];
+    }
+
+    /**
+     * @return true if the crop changed and the zones have to be remapped
+     */
+    public boolean update(PixelReader reader) {
+        if (mFrame++ % mInterval != 0) {
+            return false;
+        }
+
+        final int width = reader.getWidth();
+        final int height = reader.getHeight();
+
+        int top = 0;
+        while (top < height && isBlackRow(reader, top, width)) {
+            top++;
+        }
+        if (top == height) {
+            return false;
+        }
+
+        int bottom = 0;
+        while (isBlackRow(reader, height - 1 - bottom, width)) {
+            bottom++;
+        }
+        int left = 0;
+        while (isBlackColumn(reader, left, width, height)) {
+            left++;
+        }
+        int right = 0;
+        while (isBlackColumn(reader, width - 1 - right, width, height)) {
+            right++;
+        }
+
+        mDetected[LEFT] = Math.min(left, width / MAX_BAR_DIVIDER);
+        mDetected[TOP] = Math.min(top, height / MAX_BAR_DIVIDER);
+        mDetected[RIGHT] = Math.min(right, width / MAX_BAR_DIVIDER);
+        mDetected[BOTTOM] = Math.min(bottom, height / MAX_BAR_DIVIDER);
+
+        if (Arrays.equals(mDetected, mCrop)) {
+            mCandidateCount = 0;
+            return false;
+        }
+
+        if (!Arrays.equals(mDetected, mCandidate)) {
+            System.arraycopy(mDetected, 0, mCandidate, 0, mDetected.length);
+            mCandidateCount = 0;
+        }
+        if (++mCandidateCount < HYSTERESIS) {
+            return false;
+        }
+
+        System.arraycopy(mCandidate, 0, mCrop, 0, mCandidate.length);
+        mCandidateCount = 0;
+        Log.v(TAG, "crop l=" + mCrop[LEFT] + " t=" + mCrop[TOP] + " r=" + mCrop[RIGHT] + " b=" + mCrop[BOTTOM]);
+        return true;
+    }
+
+    private static boolean isBlackRow(PixelReader reader, int y, int width) {
+        int offset = y * width;
+        for (int x = 0; x < width; x++) {
+            if (!isBlack(reader.getPixel(offset + x))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlackColumn(PixelReader reader, int x, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            if (!isBlack(reader.getPixel(y * width + x))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlack(int color) {
+        return Color.red(color) <= BLACK_LEVEL && Color.green(color) <= BLACK_LEVEL && Color.blue(color) <= BLACK_LEVEL;
+    }
+}
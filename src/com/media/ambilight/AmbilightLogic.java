@@ -1,106 +1,70 @@
 package com.media.ambilight;
 
-import android.graphics.Color;
-
-import java.util.ArrayList;
-
+/**
+ * Smoothing of the sampled colors with the AmbilightFilter selected by AMBILIGHT_FILTER.
+ * Hard cuts (see AmbilightSceneCut) reset the filter, so they are shown without smoothing.
+ */
 public class AmbilightLogic {
-    private static final int UPDATE_FPS = AmbilightSettings.AMBILIGHT_UPDATE_FPS;
-    private static final int SET_TIME_MS = AmbilightSettings.AMBILIGHT_BUFFERED_TIME_MS;
-    private static final int GET_TIME_MS = SET_TIME_MS / UPDATE_FPS;
     private static final int COLOR_FLUCTUATE_PERCENTS = 10;
+    // one euro parameters: cutoff in Hz at rest and its growth per (0..255 units / s) of speed
+    private static final float ONE_EURO_MIN_CUTOFF = 0.5f;
+    private static final float ONE_EURO_BETA = 0.02f;
 
-    private long mTimestampMs = 0;
-    private long mTimestampColorMs = 0;
-    private int mColorIndex = 0;
+    private final int[] mColors;
+    private final AmbilightFilter mFilter;
 
-    private ArrayList<ColorMetric> mMetrics = new ArrayList<ColorMetric>(AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS);
-    private int[] mColors = new int[AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS];
+    private AmbilightSceneCut mSceneCut = new AmbilightSceneCut();
+    private boolean mRestart = false;
 
     public AmbilightLogic() {
-        for (int i = 0; i < AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS; ++i) {
-            mMetrics.add(new ColorMetric());
-        }
+        this(AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS);
     }
 
-    public int[] update(final int[] colors) {
-        long timestampMs = System.currentTimeMillis();
-        if (mTimestampMs == 0 || timestampMs - mTimestampMs >= SET_TIME_MS) {
-            mTimestampColorMs = mTimestampMs = timestampMs;
-            mColorIndex = 0;
-
-            for (int i = 0; i < colors.length; ++i) {
-                mMetrics.get(i).update(colors[i]);
-            }
-        }
-
-        for (int i = 0; i < colors.length; ++i) {
-            mColors[i] = getColor(i);
-        }
+    public AmbilightLogic(int count) {
+        mColors = new int[count];
+        mFilter = createFilter(AmbilightSettings.AMBILIGHT_FILTER, count);
+    }
 
+    public int[] update(final int[] colors) {
+        final long nowNs = System.nanoTime();
+        update(colors, nowNs);
+        evaluate(nowNs, mColors);
         return mColors;
     }
 
-    public int getColor(int index) {
-        long timestampMs = System.currentTimeMillis();
-        if (timestampMs - mTimestampColorMs >= GET_TIME_MS) {
-            mTimestampColorMs = timestampMs;
-            mColorIndex++;
+    public void update(final int[] colors, long nowNs) {
+        if (mSceneCut.update(colors) || mRestart) {
+            // no smoothing on a hard cut or after a restart
+            mRestart = false;
+            mFilter.reset(colors, nowNs);
+        } else {
+            mFilter.setTarget(colors, nowNs);
         }
-        return mMetrics.get(index).getColor(mColorIndex);
     }
 
-    private class ColorMetric {
-        private int mColorPrevious = 0;
-        private int mColorCurrent = 0;
-
-        ArrayList<Integer> mGradient = new ArrayList<Integer>(UPDATE_FPS);
-
-        public ColorMetric() {
-            initilaize();
-        }
-
-        public void update(int color) {
-            mColorPrevious = mColorCurrent;
-            mColorCurrent = color;
-
-            int r = Color.red(mColorPrevious);
-            int g = Color.green(mColorPrevious);
-            int b = Color.blue(mColorPrevious);
-
-            int rd = Color.red(mColorCurrent) - r;
-            int gd = Color.green(mColorCurrent) - g;
-            int bd = Color.blue(mColorCurrent) - b;
-
-            if (rd < COLOR_FLUCTUATE_PERCENTS) {
-                rd = 0;
-            }
-
-            if (gd < COLOR_FLUCTUATE_PERCENTS) {
-                gd = 0;
-            }
-
-            if (bd < COLOR_FLUCTUATE_PERCENTS) {
-                bd = 0;
-            }
-
-            for (int i = 0; i < UPDATE_FPS; ++i) {
-                int ri = r + (rd * i / (UPDATE_FPS - 1));
-                int gi = g + (gd * i / (UPDATE_FPS - 1));
-                int bi = b + (bd * i / (UPDATE_FPS - 1));
-
-                mGradient.set(i, Color.rgb(ri, gi, bi));
-            }
-        }
+    public void evaluate(long nowNs, final int[] out) {
+        mFilter.evaluate(nowNs, out);
+    }
 
-        public int getColor(int index) {
-            return index < UPDATE_FPS ? mGradient.get(index) : mGradient.get(mGradient.size() - 1);
-        }
+    /**
+     * The next colors are not compared with the ones before and are shown without smoothing.
+     */
+    public void reset() {
+        mSceneCut.reset();
+        mRestart = true;
+    }
 
-        private void initilaize() {
-            for (int i = 0; i < UPDATE_FPS; ++i) {
-                mGradient.add(i, 0);
-            }
+    private static AmbilightFilter createFilter(int filter, int count) {
+        switch (filter) {
+            case AmbilightSettings.AMBILIGHT_FILTER_EMA:
+                return new AmbilightFilter.Ema(count, AmbilightSettings.AMBILIGHT_FILTER_TIME_MS);
+            case AmbilightSettings.AMBILIGHT_FILTER_SPRING:
+                return new AmbilightFilter.Spring(count, AmbilightSettings.AMBILIGHT_FILTER_TIME_MS);
+            case AmbilightSettings.AMBILIGHT_FILTER_ONE_EURO:
+                return new AmbilightFilter.OneEuro(count, ONE_EURO_MIN_CUTOFF, ONE_EURO_BETA);
+            default:
+                return new AmbilightFilter.Linear(count, AmbilightSettings.AMBILIGHT_BUFFERED_TIME_MS,
+                        COLOR_FLUCTUATE_PERCENTS);
         }
     }
 }
@@ -0,0 +1,71 @@
+package com.media.ambilight;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free single slot for the latest colors, one writer and any number of readers.
+ * Seqlock: the sequence is odd while the writer copies, a reader retries if it changed
+ * while copying. Nobody waits, older colors are overwritten, nothing is allocated
+ * after construction.
+ */
+public class AmbilightMailbox {
+    private static final int MAX_RETRIES = 4;
+
+    private final int mCount;
+    private final AtomicInteger mSequence = new AtomicInteger(0);
+    private final AtomicIntegerArray mColors;
+    private volatile long mTimestampNs = Long.MIN_VALUE;
+
+    public AmbilightMailbox(int count) {
+        mCount = count;
+        mColors = new AtomicIntegerArray(count);
+    }
+
+    /**
+     * Writer thread only.
+     */
+    public void publish(final int[] colors, long timestampNs) {
+        mSequence.incrementAndGet();
+        mTimestampNs = timestampNs;
+        final int count = Math.min(colors.length, mCount);
+        for (int i = 0; i < count; i++) {
+            mColors.set(i, colors[i]);
+        }
+        mSequence.incrementAndGet();
+    }
+
+    /**
+     * Timestamp of the colors in the slot, Long.MIN_VALUE if nothing was published yet.
+     * May change right after, read() tells what was actually copied.
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    /**
+     * Copies the latest colors.
+     *
+     * @return their timestamp or Long.MIN_VALUE if nothing was published yet
+     */
+    public long read(final int[] out) {
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            final int sequence = mSequence.get();
+            if (sequence == 0) {
+                return Long.MIN_VALUE;
+            }
+            if ((sequence & 1) != 0) {
+                continue;
+            }
+            final long timestampNs = mTimestampNs;
+            final int count = Math.min(out.length, mCount);
+            for (int i = 0; i < count; i++) {
+                out[i] = mColors.get(i);
+            }
+            if (mSequence.get() == sequence) {
+                return timestampNs;
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+}
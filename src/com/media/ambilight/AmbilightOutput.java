@@ -1,6 +1,8 @@
 package com.media.ambilight;
 
 import com.media.ambilight.ble.BluetoothLeService;
+import com.media.ambilight.ble.BluetouthGattAttributes;
+import com.media.ambilight.ble.LEDCommandEncoder;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothManager;
@@ -20,32 +22,65 @@ import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import android.widget.LinearLayout.LayoutParams;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 @SuppressLint("NewApi")
 public interface AmbilightOutput {
 
     public void create();
     public void destroy();
-    public void update(final int[] colors);
+    // dirty[i] is set for the channels changed since the previous update
+    public void update(final int[] colors, final boolean[] dirty);
     public void update(final int[][] colors);
     public void setColor(int color);
     public void setBrightness(int value);
     public void setOnOff(boolean off);
     public boolean isSupported();
+    // rate the output ticker updates this output at
+    public int getUpdateRateHz();
+    // time from update() until the color is visible, colors are sent this much ahead
+    public int getLatencyMs();
 
     public class ViewsOutput implements AmbilightOutput {
+        private static final int UPDATE_RATE_HZ = 60;
+        // posted to the UI thread, shown with the next vsync
+        private static final int LATENCY_MS = 16;
+
         private FrameLayout mFrame;
         private Context mContext;
 
         private LinearLayout mLeft;
         private LinearLayout mRight;
+        private LinearLayout mTop;
+        private LinearLayout mBottom;
 
         private ArrayList<AmbilightView> mViews;
 
+        // dirty colors collected until the UI thread picks them up
+        private final int[] mPendingColors = new int[AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS];
+        private final boolean[] mPendingDirty = new boolean[AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS];
+        private boolean mPending = false;
+
+        private final Runnable mPendingUpdate = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPendingColors) {
+                    for (int i = 0; i < mPendingDirty.length && i < mViews.size(); i++) {
+                        if (mPendingDirty[i]) {
+                            mViews.get(i).update(mPendingColors[i]);
+                            mPendingDirty[i] = false;
+                        }
+                    }
+                    mPending = false;
+                }
+            }
+        };
+
         public static boolean isSupportedDebug() {
             return true;
         }
@@ -60,6 +95,10 @@ public interface AmbilightOutput {
                 paramsLeft.gravity = Gravity.LEFT;
                 FrameLayout.LayoutParams paramsRight = new FrameLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.MATCH_PARENT);
                 paramsRight.gravity = Gravity.RIGHT;
+                FrameLayout.LayoutParams paramsTop = new FrameLayout.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
+                paramsTop.gravity = Gravity.TOP;
+                FrameLayout.LayoutParams paramsBottom = new FrameLayout.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
+                paramsBottom.gravity = Gravity.BOTTOM;
 
                 mLeft = new LinearLayout(context);
                 mLeft.setOrientation(LinearLayout.VERTICAL);
@@ -69,11 +108,21 @@ public interface AmbilightOutput {
                 mRight.setOrientation(LinearLayout.VERTICAL);
                 mRight.setLayoutParams(paramsRight);
 
+                mTop = new LinearLayout(context);
+                mTop.setOrientation(LinearLayout.HORIZONTAL);
+                mTop.setLayoutParams(paramsTop);
+
+                mBottom = new LinearLayout(context);
+                mBottom.setOrientation(LinearLayout.HORIZONTAL);
+                mBottom.setLayoutParams(paramsBottom);
+
                 mFrame.post(new Runnable() {
                     @Override
                     public void run() {
                         mFrame.addView(mLeft);
                         mFrame.addView(mRight);
+                        mFrame.addView(mTop);
+                        mFrame.addView(mBottom);
                     }
                 });
             }
@@ -86,32 +135,45 @@ public interface AmbilightOutput {
             mFrame.post(new Runnable() {
                 @Override
                 public void run() {
-                    for (int i = 0; i < AmbilightSettings.AMBILIGHT_SUB_CHANNELS; i++) {
-                        mViews.add(new AmbilightView(mContext, mLeft));
-                        //mViews.add(new AmbilightView(mContext, mLeft));
-                        //mViews.add(new AmbilightView(mContext, mLeft));
-
-                        //mViews.add(new AmbilightView(mContext, mRight));
-                        //mViews.add(new AmbilightView(mContext, mRight));
-                        mViews.add(new AmbilightView(mContext, mRight));
+                    // same clockwise order as AmbilightZoneLayout, starting from the bottom left corner
+                    for (int i = 0; i < AmbilightSettings.AMBILIGHT_ZONES_LEFT; i++) {
+                        mViews.add(new AmbilightView(mContext, mLeft, 0));
+                    }
+                    for (int i = 0; i < AmbilightSettings.AMBILIGHT_ZONES_TOP; i++) {
+                        mViews.add(new AmbilightView(mContext, mTop, -1));
+                    }
+                    for (int i = 0; i < AmbilightSettings.AMBILIGHT_ZONES_RIGHT; i++) {
+                        mViews.add(new AmbilightView(mContext, mRight, -1));
+                    }
+                    for (int i = 0; i < AmbilightSettings.AMBILIGHT_ZONES_BOTTOM; i++) {
+                        mViews.add(new AmbilightView(mContext, mBottom, 0));
                     }
                 }
             });
         }
 
         @Override
-        public void update(final int[] colors) {
+        public void update(final int[] colors, final boolean[] dirty) {
             if (mFrame == null) {
                 return;
             }
-            mFrame.post(new Runnable() {
-                @Override
-                public void run() {
-                    for (int i = 0; i < colors.length; i++) {
-                        mViews.get(i).update(colors[i]);
+
+            boolean post;
+            synchronized (mPendingColors) {
+                post = !mPending;
+                for (int i = 0; i < colors.length; i++) {
+                    if (dirty[i]) {
+                        mPendingColors[i] = colors[i];
+                        mPendingDirty[i] = true;
+                        mPending = true;
                     }
                 }
-            });
+                post &= mPending;
+            }
+
+            if (post) {
+                mFrame.post(mPendingUpdate);
+            }
         }
 
         @Override
@@ -137,6 +199,16 @@ public interface AmbilightOutput {
             return true;
         }
 
+        @Override
+        public int getUpdateRateHz() {
+            return UPDATE_RATE_HZ;
+        }
+
+        @Override
+        public int getLatencyMs() {
+            return LATENCY_MS;
+        }
+
         private class AmbilightView {
             public static final int DEFAULT_VIEW_WIDTH = 100;
             public static final int DEFAULT_VIEW_HEIGHT = 100;
@@ -144,7 +216,7 @@ public interface AmbilightOutput {
             private View mView;
             private GradientDrawable mGradient;
 
-            public AmbilightView(Context context, LinearLayout view) {
+            public AmbilightView(Context context, LinearLayout view, int index) {
                 if (view == null) {
                     return;
                 }
@@ -156,7 +228,7 @@ public interface AmbilightOutput {
                 mGradient.setShape(GradientDrawable.RECTANGLE);
                 mGradient.setStroke(8, Color.BLACK);
 
-                view.addView(mView);
+                view.addView(mView, index);
             }
 
             public void update(int color) {
@@ -199,6 +271,8 @@ public interface AmbilightOutput {
     public class BluetoothLEDOutput implements AmbilightOutput {
         private static final String TAG = BluetoothLEDOutput.class.getSimpleName();
 
+        private static final int UPDATE_RATE_HZ = 20;
+
         private static final float WHITE_BALANCE_R = 1.0f;
         private static final float WHITE_BALANCE_G = 0.9f;
         private static final float WHITE_BALANCE_B = 0.75f;
@@ -216,15 +290,16 @@ public interface AmbilightOutput {
         //private int mFPSCounter = 0;
         //private LEDAnimation mLEDAnimation = new LEDAnimation();
 
-        private int[] mLastColors = new int[AmbilightSettings.AMBILIGHT_TOTAL_CHANNELS];
-        private int mLastBrightness = 0;
-        private boolean mLastOff = true;
-        private int mLastCommand = COMMAND_COLOR;
+        // written from the ticker and the main thread, only replayed by setLastValue()
+        private volatile int mLastColor = 0;
+        private volatile int mLastBrightness = 0;
+        private volatile boolean mLastOff = true;
+        private volatile int mLastCommand = COMMAND_COLOR;
 
         private BluetoothLeService mBluetoothLeService = null;
 
-        private ExecutorService mService = Executors.newSingleThreadExecutor();
-        //private BlockingQueue<byte[]> mServiceQueue = new LinkedBlockingQueue<>(2);
+        // one write lane per device, a slow device only delays itself
+        private volatile Lane[] mLanes = new Lane[0];
 
         private BluetoothLeService.Callback mBluetoothLeServiceCallback = new BluetoothLeService.Callback() {
             @Override
@@ -298,7 +373,7 @@ public interface AmbilightOutput {
         }
 
         @Override
-        public void update(final int[] colors) {
+        public void update(final int[] colors, final boolean[] dirty) {
             if (isEmpty()) {
                 return;
             }
@@ -308,16 +383,13 @@ public interface AmbilightOutput {
             //}
 
             for (int i = 0; i < colors.length; ++i) {
-                int color = colors[i];
-
-                if (!AmbilightSettings.AMBILIGHT_TEST) {
-                    if (mLastColors[i] != color) {
-                        setLEDColor(i, color);
-                        mLastColors[i] = color;
-                    }
-                } else {
-                    setLEDColor(i, color);
+                if (!dirty[i] && !AmbilightSettings.AMBILIGHT_TEST) {
+                    continue;
                 }
+                setLEDColor(i, colors[i]);
+            }
+            if (colors.length > 0) {
+                mLastColor = colors[0];
             }
             mLastCommand = COMMAND_COLOR;
         }
@@ -342,10 +414,7 @@ public interface AmbilightOutput {
             if (!isEmpty()) {
                 setLEDColorAll(color);
             }
-
-            for (int i = 0; i < mLastColors.length; ++i) {
-                mLastColors[i] = color;
-            }
+            mLastColor = color;
             mLastCommand = COMMAND_COLOR;
         }
 
@@ -375,6 +444,17 @@ public interface AmbilightOutput {
             return mSupported;
         }
 
+        @Override
+        public int getUpdateRateHz() {
+            return UPDATE_RATE_HZ;
+        }
+
+        @Override
+        public int getLatencyMs() {
+            BluetoothLeService service = mBluetoothLeService;
+            return service != null ? service.getLatencyMs() : 0;
+        }
+
         protected void start(BluetoothLeService service) {
             Log.v(TAG, "start!");
             if (service == null) {
@@ -382,11 +462,24 @@ public interface AmbilightOutput {
             }
 
             mBluetoothLeService = service;
+
+            Lane[] lanes = new Lane[BluetouthGattAttributes.allowedMacSize()];
+            for (int i = 0; i < lanes.length; ++i) {
+                lanes[i] = new Lane(i);
+            }
+            mLanes = lanes;
+
             mBluetoothLeService.initialize();
         }
 
         protected void stop() {
             Log.v(TAG, "stop!");
+            Lane[] lanes = mLanes;
+            mLanes = new Lane[0];
+            for (Lane lane : lanes) {
+                lane.shutdown();
+            }
+
             if (mBluetoothLeService != null) {
                 mBluetoothLeService.close();
                 mBluetoothLeService = null;
@@ -401,8 +494,8 @@ public interface AmbilightOutput {
                 Log.v(TAG, "setLastValue last off=" + mLastOff);
                 setOnOff(mLastOff);
             } else if (mLastCommand == COMMAND_COLOR) {
-                Log.v(TAG, "setLastValue last color=" + mLastColors[0]);
-                setColor(mLastColors[0]);
+                Log.v(TAG, "setLastValue last color=" + mLastColor);
+                setColor(mLastColor);
             }
         }
 
@@ -433,9 +526,10 @@ public interface AmbilightOutput {
                 return;
             }
 
-            String data = "$COL," + r + "," + g +"," + b + "?";
-            //Log.v(TAG, "setLEDColor: " + index + " : " + data);
-            sendData(index, data.getBytes());
+            Lane lane = getLane(index);
+            if (lane != null) {
+                lane.submitColor(r, g, b);
+            }
         }
 
         protected void setLEDBrightnessAll(int value) {
@@ -469,8 +563,10 @@ public interface AmbilightOutput {
             if (value < 0) {
                 value = 0;
             }
-            String data = "$BRI," + value + "," + value + "?";
-            sendData(index, data.getBytes());
+            Lane lane = getLane(index);
+            if (lane != null) {
+                lane.submitCommand(value);
+            }
         }
 
         private void setLEDOnOff(int index, boolean off) {
@@ -478,9 +574,11 @@ public interface AmbilightOutput {
                 return;
             }
 
-            String data = off ? "$GOF?" : "$GON?";
-            Log.v(TAG, "setLEDOnOff: " + data);
-            sendData(index, data.getBytes());
+            Log.v(TAG, "setLEDOnOff: " + off);
+            Lane lane = getLane(index);
+            if (lane != null) {
+                lane.submitCommand(off ? Lane.COMMAND_OFF : Lane.COMMAND_ON);
+            }
         }
 
         private int correctWhiteBalanceR(int color) {
@@ -499,13 +597,159 @@ public interface AmbilightOutput {
             return mBluetoothLeService == null || mConnectedCounter == 0;
         }
 
-        private void sendData(final int index, final byte[] data) {
-            mService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    mBluetoothLeService.sendCharacteristic(index, data);
+        private Lane getLane(int index) {
+            Lane[] lanes = mLanes;
+            return index < lanes.length ? lanes[index] : null;
+        }
+
+        /**
+         * Ordered writes for one device on its own thread. Colors are coalesced to the latest one,
+         * state commands (brightness, on/off) keep their order and go out before the color.
+         * A command replaces a trailing queued one of the same kind, a full queue drops its oldest.
+         */
+        private class Lane implements Runnable {
+            // brightness commands are 0..100
+            public static final int COMMAND_ON = -1;
+            public static final int COMMAND_OFF = -2;
+
+            private static final int MAX_COMMANDS = 4;
+
+            private final int mIndex;
+            private final ExecutorService mExecutor;
+            // lane thread only
+            private final LEDCommandEncoder mEncoder = new LEDCommandEncoder();
+
+            // guarded by this
+            private final ArrayDeque<Integer> mCommands = new ArrayDeque<Integer>();
+            private int mR, mG, mB;
+            private boolean mHasColor = false;
+            private boolean mScheduled = false;
+
+            private long mSubmitted = 0;
+            private long mCoalesced = 0;
+            // accepted by the service
+            private long mSent = 0;
+            // device not connected, write failed, lane full or a pending command dropped by the service
+            private long mDropped = 0;
+
+            public Lane(final int index) {
+                mIndex = index;
+                mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG + "-" + index);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+
+            public synchronized void submitColor(int r, int g, int b) {
+                mSubmitted++;
+                if (mHasColor) {
+                    mCoalesced++;
                 }
-            });
+                mR = r;
+                mG = g;
+                mB = b;
+                mHasColor = true;
+                schedule();
+            }
+
+            public synchronized void submitCommand(int command) {
+                mSubmitted++;
+                Integer last = mCommands.peekLast();
+                if (last != null && isOnOff(last) == isOnOff(command)) {
+                    // not written yet, only the newer value matters
+                    mCommands.pollLast();
+                    mCoalesced++;
+                } else if (mCommands.size() >= MAX_COMMANDS) {
+                    mCommands.poll();
+                    mDropped++;
+                }
+                mCommands.offer(command);
+                schedule();
+            }
+
+            public void shutdown() {
+                synchronized (this) {
+                    mExecutor.shutdownNow();
+                    Log.v(TAG, "lane " + mIndex + " submitted=" + mSubmitted + " sent=" + mSent
+                            + " coalesced=" + mCoalesced + " dropped=" + mDropped);
+                }
+            }
+
+            private boolean isOnOff(int command) {
+                return command == COMMAND_ON || command == COMMAND_OFF;
+            }
+
+            // called with the lane locked, at most one run() is queued at a time
+            private void schedule() {
+                if (!mScheduled && !mExecutor.isShutdown()) {
+                    mScheduled = true;
+                    mExecutor.execute(this);
+                }
+            }
+
+            @Override
+            public void run() {
+                boolean idle = false;
+                try {
+                    while (true) {
+                        Integer command;
+                        int r, g, b;
+                        synchronized (this) {
+                            command = mCommands.poll();
+                            if (command == null && !mHasColor) {
+                                mScheduled = false;
+                                idle = true;
+                                return;
+                            }
+                            r = mR;
+                            g = mG;
+                            b = mB;
+                            if (command == null) {
+                                mHasColor = false;
+                            }
+                        }
+
+                        boolean sent = false;
+                        try {
+                            sent = send(command, r, g, b);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "lane " + mIndex + " write failed", e);
+                        }
+
+                        synchronized (this) {
+                            if (sent) {
+                                mSent++;
+                            } else {
+                                mDropped++;
+                            }
+                        }
+                    }
+                } finally {
+                    if (!idle) {
+                        synchronized (this) {
+                            mScheduled = false;
+                        }
+                    }
+                }
+            }
+
+            // the service copies what it keeps, the encoder buffer is reused right away
+            private boolean send(Integer command, int r, int g, int b) {
+                BluetoothLeService service = mBluetoothLeService;
+                if (service == null) {
+                    return false;
+                }
+                if (command == null) {
+                    return service.sendColor(mIndex, mEncoder.getBuffer(), mEncoder.encodeColor(r, g, b));
+                } else if (isOnOff(command)) {
+                    return service.sendCommand(mIndex, mEncoder.getBuffer(), mEncoder.encodeOnOff(command == COMMAND_OFF));
+                }
+                return service.sendCommand(mIndex, mEncoder.getBuffer(), mEncoder.encodeBrightness(command));
+            }
         }
 /*
         private class LEDAnimation {
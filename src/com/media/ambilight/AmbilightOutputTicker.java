@@ -0,0 +1,170 @@
+package com.media.ambilight;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the outputs from their own thread, each one at its AmbilightOutput.getUpdateRateHz().
+ * The renderer only publishes the sampled colors with the frame presentation time into a
+ * time-indexed ring and never waits for the outputs. A frame is visible on the screen
+ * AMBILIGHT_DISPLAY_LATENCY_MS after its presentation time and the colors sent now are visible
+ * after the output latency, so every tick takes the newest colors presented at
+ * now - (display latency - output latency). Outputs slower than the display take the newest.
+ * Each output has its own AmbilightLogic, so the smoothing is evaluated at the output rate.
+ */
+public class AmbilightOutputTicker {
+    private static final String TAG = AmbilightOutputTicker.class.getSimpleName();
+
+    // presentation times further than this from now are not on the System.nanoTime() clock
+    private static final long MAX_TIMESTAMP_SKEW_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long DISPLAY_LATENCY_NS =
+            TimeUnit.MILLISECONDS.toNanos(AmbilightSettings.AMBILIGHT_DISPLAY_LATENCY_MS);
+
+    private final int mCount;
+    private final AmbilightTimedRing mRing;
+    private final ArrayList<Slot> mSlots = new ArrayList<Slot>();
+
+    private ScheduledExecutorService mExecutor = null;
+    private volatile boolean mEnabled = true;
+    private volatile int mInvalidation = 0;
+
+    public AmbilightOutputTicker(int count) {
+        mCount = count;
+        mRing = new AmbilightTimedRing(AmbilightSettings.AMBILIGHT_TIMED_FRAMES, count);
+    }
+
+    /**
+     * Called from the renderer thread with every sampled frame.
+     *
+     * @param timestampNs presentation time of the frame, System.nanoTime() based
+     */
+    public void publish(final int[] colors, long timestampNs) {
+        long nowNs = System.nanoTime();
+        if (timestampNs <= 0 || Math.abs(timestampNs - nowNs) > MAX_TIMESTAMP_SKEW_NS) {
+            timestampNs = nowNs;
+        }
+        mRing.publish(colors, timestampNs);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Something else was sent to the outputs, every output resends all channels on its next tick.
+     */
+    public void invalidate() {
+        mInvalidation++;
+    }
+
+    public synchronized void start(List<AmbilightOutput> outputs) {
+        stop();
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        for (AmbilightOutput output : outputs) {
+            Slot slot = new Slot(output);
+            mSlots.add(slot);
+
+            int hz = Math.max(output.getUpdateRateHz(), 1);
+            long periodUs = TimeUnit.SECONDS.toMicros(1) / hz;
+            mExecutor.scheduleAtFixedRate(slot, 0, periodUs, TimeUnit.MICROSECONDS);
+            Log.v(TAG, "start " + output.getClass().getSimpleName() + " at " + hz + " Hz");
+        }
+    }
+
+    public synchronized void stop() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            try {
+                mExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mExecutor = null;
+        }
+        mSlots.clear();
+    }
+
+    private class Slot implements Runnable {
+        private final AmbilightOutput mOutput;
+        private final AmbilightLogic mLogic = new AmbilightLogic(mCount);
+        private final int[] mInput = new int[mCount];
+        private final int[] mColors = new int[mCount];
+        private final int[] mLastColors = new int[mCount];
+        private final boolean[] mDirty = new boolean[mCount];
+        private boolean mForce = true;
+        private long mInputTimestampNs = Long.MIN_VALUE;
+        private int mInvalidation = AmbilightOutputTicker.this.mInvalidation;
+
+        public Slot(AmbilightOutput output) {
+            mOutput = output;
+        }
+
+        @Override
+        public void run() {
+            if (!mEnabled) {
+                // whatever was shown meanwhile is unknown, resend everything once enabled
+                // and start over from the next frame
+                if (!mForce) {
+                    mForce = true;
+                    mLogic.reset();
+                }
+                return;
+            }
+
+            try {
+                final long nowNs = System.nanoTime();
+                final long latencyNs = TimeUnit.MILLISECONDS.toNanos(mOutput.getLatencyMs());
+                final long delayNs = Math.max(0, DISPLAY_LATENCY_NS - latencyNs);
+                final long timestampNs = mRing.read(nowNs - delayNs, mInput);
+                if (timestampNs == Long.MIN_VALUE && mInputTimestampNs == Long.MIN_VALUE) {
+                    return;
+                }
+
+                final int invalidation = AmbilightOutputTicker.this.mInvalidation;
+                if (mInvalidation != invalidation) {
+                    mInvalidation = invalidation;
+                    mForce = true;
+                }
+
+                // the filter only advances with a new frame, in between it is just evaluated
+                if (timestampNs != Long.MIN_VALUE && timestampNs != mInputTimestampNs) {
+                    mInputTimestampNs = timestampNs;
+                    mLogic.update(mInput, nowNs);
+                }
+                mLogic.evaluate(nowNs, mColors);
+
+                // outputs only touch the channels changed since their last update
+                boolean changed = false;
+                for (int i = 0; i < mCount; i++) {
+                    boolean dirty = mForce || mLastColors[i] != mColors[i];
+                    mDirty[i] = dirty;
+                    mLastColors[i] = mColors[i];
+                    changed |= dirty;
+                }
+                mForce = false;
+
+                if (changed) {
+                    mOutput.update(mColors, mDirty);
+                }
+            } catch (RuntimeException e) {
+                // an exception would cancel the periodic task
+                Log.e(TAG, "output update failed", e);
+            }
+        }
+    }
+}
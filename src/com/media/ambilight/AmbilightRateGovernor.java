@@ -0,0 +1,74 @@
+package com.media.ambilight;
+
+import android.graphics.Color;
+
+/**
+ * Adapts how often the video frame is sampled to the content. The interval (in drawn frames)
+ * doubles after a few static samples up to the floor rate, halves on motion and drops back
+ * to every frame on a cut, measured as the largest channel change over all zones.
+ */
+public class AmbilightRateGovernor {
+    private static final int STATIC_DELTA = 4;
+    private static final int MOTION_DELTA = 16;
+    private static final int CUT_DELTA = 64;
+    private static final int STATIC_SAMPLES = 3;
+
+    private final int mMaxInterval;
+    // written by the sampling thread, read by the GL thread
+    private volatile int mInterval = 1;
+    // GL thread only
+    private int mCountdown = 0;
+    // sampling thread only
+    private int mStaticSamples = 0;
+
+    private int[] mPrevious = null;
+
+    public AmbilightRateGovernor(int maxInterval) {
+        mMaxInterval = Math.max(maxInterval, 1);
+    }
+
+    /**
+     * Called on the GL thread for every drawn frame, true if this one has to be read back and sampled.
+     */
+    public boolean shouldSample() {
+        if (mCountdown > 0) {
+            mCountdown--;
+            return false;
+        }
+        mCountdown = mInterval - 1;
+        return true;
+    }
+
+    // sampling thread, with the colors of every sampled frame
+    public void update(final int[] colors) {
+        if (colors == null) {
+            return;
+        }
+        if (mPrevious == null || mPrevious.length != colors.length) {
+            mPrevious = new int[colors.length];
+            System.arraycopy(colors, 0, mPrevious, 0, colors.length);
+            return;
+        }
+
+        int delta = 0;
+        for (int i = 0; i < colors.length; i++) {
+            int previous = mPrevious[i];
+            int color = colors[i];
+            delta = Math.max(delta, Math.abs(Color.red(color) - Color.red(previous)));
+            delta = Math.max(delta, Math.abs(Color.green(color) - Color.green(previous)));
+            delta = Math.max(delta, Math.abs(Color.blue(color) - Color.blue(previous)));
+            mPrevious[i] = color;
+        }
+
+        if (delta >= CUT_DELTA) {
+            mInterval = 1;
+            mStaticSamples = 0;
+        } else if (delta >= MOTION_DELTA) {
+            mInterval = Math.max(mInterval / 2, 1);
+            mStaticSamples = 0;
+        } else if (delta <= STATIC_DELTA && ++mStaticSamples >= STATIC_SAMPLES) {
+            mInterval = Math.min(mInterval * 2, mMaxInterval);
+            mStaticSamples = 0;
+        }
+    }
+}
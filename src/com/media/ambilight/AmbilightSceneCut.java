@@ -0,0 +1,58 @@
+package com.media.ambilight;
+
+import android.graphics.Color;
+
+/**
+ * Hard cut detection over the zone colors: a cut is a luma or chroma jump on most of the
+ * zones between two consecutive samples. Gradual changes (fades, pans) never jump that far
+ * in one sample, so they still go through the smoothing.
+ */
+public class AmbilightSceneCut {
+    private static final int LUMA_JUMP = 64;
+    private static final int CHROMA_JUMP = 80;
+    private static final int CUT_ZONES_PERCENT = 60;
+
+    private int[] mPrevious = null;
+
+    /**
+     * @return true if the colors are a cut from the previous ones
+     */
+    public boolean update(final int[] colors) {
+        if (mPrevious == null || mPrevious.length != colors.length) {
+            mPrevious = new int[colors.length];
+            System.arraycopy(colors, 0, mPrevious, 0, colors.length);
+            return false;
+        }
+
+        int jumps = 0;
+        for (int i = 0; i < colors.length; i++) {
+            if (isJump(mPrevious[i], colors[i])) {
+                jumps++;
+            }
+            mPrevious[i] = colors[i];
+        }
+        return colors.length > 0 && jumps * 100 >= colors.length * CUT_ZONES_PERCENT;
+    }
+
+    public void reset() {
+        mPrevious = null;
+    }
+
+    private static boolean isJump(int from, int to) {
+        int r0 = Color.red(from);
+        int g0 = Color.green(from);
+        int b0 = Color.blue(from);
+        int r1 = Color.red(to);
+        int g1 = Color.green(to);
+        int b1 = Color.blue(to);
+
+        // BT.601 luma and two opponent chroma axes in 0..255 fixed point
+        int luma = ((r1 - r0) * 77 + (g1 - g0) * 150 + (b1 - b0) * 29) >> 8;
+        if (Math.abs(luma) >= LUMA_JUMP) {
+            return true;
+        }
+        int rg = (r1 - g1) - (r0 - g0);
+        int by = (b1 - (r1 + g1) / 2) - (b0 - (r0 + g0) / 2);
+        return Math.abs(rg) + Math.abs(by) >= CHROMA_JUMP;
+    }
+}
@@ -17,12 +17,59 @@ public class AmbilightSettings {
 
     public static final int AMBILIGHT_BORDER_WIDTH = 2;
 
-    public static final int AMBILIGHT_UPDATE_FPS = 5;
     public static final int AMBILIGHT_BUFFERED_TIME_MS = 400;
 
+    // temporal filter of the output colors, see AmbilightFilter
+    public static final int AMBILIGHT_FILTER_LINEAR = 0;
+    public static final int AMBILIGHT_FILTER_EMA = 1;
+    public static final int AMBILIGHT_FILTER_SPRING = 2;
+    public static final int AMBILIGHT_FILTER_ONE_EURO = 3;
+
+    public static final int AMBILIGHT_FILTER = AMBILIGHT_FILTER_LINEAR;
+    // time constant of the EMA and spring filters
+    public static final int AMBILIGHT_FILTER_TIME_MS = 150;
+
     public static final boolean AMBILIGHT_VIDEO_PLAYER_SURFACE = true;
     public static final boolean AMBILIGHT_TEST = false;
-    public static final boolean AMBILIGHT_USE_DOMINANT_COLORS = false;
+
+    public static final int AMBILIGHT_COLOR_MODE_AVERAGE = 0;
+    public static final int AMBILIGHT_COLOR_MODE_DOMINANT = 1;
+    public static final int AMBILIGHT_COLOR_MODE_LINEAR = 2;
+    public static final int AMBILIGHT_COLOR_MODE_MEDIAN = 3;
+
+    public static final int AMBILIGHT_COLOR_MODE = AMBILIGHT_COLOR_MODE_DOMINANT;
+    // percentile used by AMBILIGHT_COLOR_MODE_MEDIAN, 50 is the median
+    public static final int AMBILIGHT_COLOR_PERCENTILE = 50;
+
+    // edge weighted averaging (AVERAGE and LINEAR modes), see AmbilightEdgeWeights
+    public static final int AMBILIGHT_EDGE_WEIGHT = AmbilightEdgeWeights.FALLOFF_NONE;
+    // sampled strip depth used when edge weighting is on, wider than AMBILIGHT_BORDER_WIDTH
+    public static final int AMBILIGHT_EDGE_WEIGHT_DEPTH = 4;
+
+    // zone count from which the zones are computed on the worker pool, see AmbilightWorkers
+    public static final int AMBILIGHT_PARALLEL_ZONES = 16;
+
+    // black bar detection, the crop is re-evaluated every AMBILIGHT_LETTERBOX_INTERVAL frames
+    public static final boolean AMBILIGHT_LETTERBOX = true;
+    public static final int AMBILIGHT_LETTERBOX_INTERVAL = 30;
+
+    // on static content the frame is sampled only every n-th drawn frame, up to this value (1 - always)
+    public static final int AMBILIGHT_GOVERNOR_MAX_INTERVAL = 8;
+
+    // sampled frames kept by presentation time for the outputs, see AmbilightTimedRing
+    public static final int AMBILIGHT_TIMED_FRAMES = 16;
+    // from the frame presentation time until it is visible on the screen, outputs faster than this are delayed
+    public static final int AMBILIGHT_DISPLAY_LATENCY_MS = 50;
+
+    // readback frames in flight between the GL thread and the sampling thread
+    public static final int AMBILIGHT_FRAMES = 4;
+
+    // GATT write type of the LED color stream, state commands are always acknowledged
+    public static final int AMBILIGHT_BLE_WRITE_DEFAULT = 0;
+    // unacknowledged color writes, falls back to DEFAULT per device if they fail
+    public static final int AMBILIGHT_BLE_WRITE_NO_RESPONSE = 1;
+
+    public static final int AMBILIGHT_BLE_WRITE = AMBILIGHT_BLE_WRITE_NO_RESPONSE;
 
     public static final int AMBILIGHT_TEST_COLORS[] = { Color.BLUE, Color.RED, Color.GREEN, Color.YELLOW, Color.CYAN, Color.CYAN, Color.MAGENTA };
     public static ArrayList<String> AMBILIGHT_MACS = new ArrayList<String>();
@@ -32,9 +79,18 @@ public class AmbilightSettings {
     public static int AMBILIGHT_SUB_CHANNELS = 1;
     public static int AMBILIGHT_TOTAL_CHANNELS = AMBILIGHT_CHANNELS * AMBILIGHT_SUB_CHANNELS;
 
+    // zones per screen edge, see AmbilightZoneLayout
+    public static int AMBILIGHT_ZONES_LEFT = 1;
+    public static int AMBILIGHT_ZONES_TOP = 0;
+    public static int AMBILIGHT_ZONES_RIGHT = 1;
+    public static int AMBILIGHT_ZONES_BOTTOM = 0;
+
     @SuppressLint("SdCardPath")
     private static final String FILE_PATH_SETTINGS = "/mnt/sdcard/ambilight.txt";
 
+    // optional second line of the settings file: "left,top,right,bottom" zones
+    private static int[] sZones = null;
+
     static {
         final String leftBottom = "08:7C:BE:2E:EF:82";
         final String leftTop = "08:7C:BE:2F:A2:49";
@@ -47,7 +103,7 @@ public class AmbilightSettings {
             || AMBILIGHT_PRESET == AMBILIGHT_PRESET_DOUBLE_TWO) {
             AMBILIGHT_CHANNELS = 2;
             AMBILIGHT_SUB_CHANNELS = 1;
-            AMBILIGHT_TOTAL_CHANNELS = AMBILIGHT_CHANNELS * AMBILIGHT_SUB_CHANNELS;
+            setZones(1, 0, 1, 0);
 
             if (AMBILIGHT_PRESET == AMBILIGHT_PRESET_DOUBLE_ONE) {
                 AMBILIGHT_MACS.add(leftBottom);
@@ -61,7 +117,7 @@ public class AmbilightSettings {
 
             AMBILIGHT_CHANNELS = 2;
             AMBILIGHT_SUB_CHANNELS = 2;
-            AMBILIGHT_TOTAL_CHANNELS = AMBILIGHT_CHANNELS * AMBILIGHT_SUB_CHANNELS;
+            setZones(2, 0, 2, 0);
 
             if (AMBILIGHT_PRESET == AMBILIGHT_PRESET_QUAD_ONE) {
                 AMBILIGHT_MACS.add(leftBottom);
@@ -75,6 +131,18 @@ public class AmbilightSettings {
                 AMBILIGHT_MACS.add(rightTop);
             }
         }
+
+        if (sZones != null) {
+            setZones(sZones[0], sZones[1], sZones[2], sZones[3]);
+        }
+    }
+
+    public static void setZones(int left, int top, int right, int bottom) {
+        AMBILIGHT_ZONES_LEFT = left;
+        AMBILIGHT_ZONES_TOP = top;
+        AMBILIGHT_ZONES_RIGHT = right;
+        AMBILIGHT_ZONES_BOTTOM = bottom;
+        AMBILIGHT_TOTAL_CHANNELS = left + top + right + bottom;
     }
 
     private static void readSettings() {
@@ -89,6 +157,19 @@ public class AmbilightSettings {
                     Log.i("AmbilightSettings", "new preset = " + preset);
                     AMBILIGHT_PRESET = preset;
                 }
+
+                line = br.readLine();
+                if (!TextUtils.isEmpty(line)) {
+                    String[] values = line.split(",");
+                    if (values.length == 4) {
+                        int[] zones = new int[4];
+                        for (int i = 0; i < zones.length; ++i) {
+                            zones[i] = Integer.parseInt(values[i].trim());
+                        }
+                        Log.i("AmbilightSettings", "new zones = " + line);
+                        sZones = zones;
+                    }
+                }
             }
         } catch (Exception e) {
         } finally {
@@ -0,0 +1,60 @@
+package com.media.ambilight;
+
+/**
+ * Small ring of colors tagged with the presentation time of the frame they were sampled from.
+ * One writer overwrites the oldest slot, readers never consume, they pick the newest slot due
+ * at a given time. Each slot is an AmbilightMailbox, so it stays lock-free and allocates
+ * nothing after construction.
+ */
+public class AmbilightTimedRing {
+    private static final int MAX_RETRIES = 4;
+
+    private final AmbilightMailbox[] mSlots;
+
+    // writer thread only
+    private int mHead = 0;
+
+    public AmbilightTimedRing(int capacity, int count) {
+        mSlots = new AmbilightMailbox[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new AmbilightMailbox(count);
+        }
+    }
+
+    /**
+     * Writer thread only.
+     */
+    public void publish(final int[] colors, long timestampNs) {
+        mSlots[mHead].publish(colors, timestampNs);
+        mHead = (mHead + 1) % mSlots.length;
+    }
+
+    /**
+     * Copies the newest colors presented at or before dueNs.
+     *
+     * @return timestamp of the copied colors or Long.MIN_VALUE if nothing is due yet
+     */
+    public long read(long dueNs, final int[] out) {
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            AmbilightMailbox slot = null;
+            long best = Long.MIN_VALUE;
+            for (AmbilightMailbox s : mSlots) {
+                // never written slots have no timestamp
+                long timestamp = s.getTimestampNs();
+                if (timestamp != Long.MIN_VALUE && timestamp <= dueNs && timestamp > best) {
+                    best = timestamp;
+                    slot = s;
+                }
+            }
+            if (slot == null) {
+                return Long.MIN_VALUE;
+            }
+
+            // overwritten meanwhile, look again
+            if (slot.read(out) == best) {
+                return best;
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,148 @@
+package com.media.ambilight;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fork-join style split of the zone set over a process wide worker pool. The calling thread
+ * works too, zones are handed out in chunks through an atomic index and results go into
+ * arrays preallocated by the caller, so a run allocates nothing.
+ * Below the threshold (or on a single core) the zones are computed serially on the caller.
+ *
+ * One run at a time per instance, worker ids are 0 (the caller) .. getWorkerCount() - 1.
+ */
+public class AmbilightWorkers {
+    private static final String TAG = AmbilightWorkers.class.getSimpleName();
+
+    public interface ZoneTask {
+        public void computeZone(int worker, int zone);
+    }
+
+    private static final int CHUNK_ZONES = 4;
+
+    private static ExecutorService sPool = null;
+    private static int sPoolSize = 0;
+
+    private final int mThreshold;
+    private final int mWorkerCount;
+    private final Worker[] mWorkers;
+
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final Object mLock = new Object();
+    private int mRunning = 0;
+
+    private ZoneTask mTask;
+    private int mCount;
+
+    public AmbilightWorkers(int threshold) {
+        mThreshold = threshold;
+        mWorkerCount = getPoolSize() + 1;
+        mWorkers = new Worker[mWorkerCount];
+        for (int i = 0; i < mWorkerCount; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+    }
+
+    public int getWorkerCount() {
+        return mWorkerCount;
+    }
+
+    public void run(ZoneTask task, int count) {
+        if (count < mThreshold || mWorkerCount == 1) {
+            for (int i = 0; i < count; i++) {
+                task.computeZone(0, i);
+            }
+            return;
+        }
+
+        mTask = task;
+        mCount = count;
+        mNext.set(0);
+
+        int helpers = Math.min(mWorkerCount - 1, (count + CHUNK_ZONES - 1) / CHUNK_ZONES - 1);
+        synchronized (mLock) {
+            mRunning = helpers;
+        }
+        for (int i = 1; i <= helpers; i++) {
+            getPool().execute(mWorkers[i]);
+        }
+
+        mWorkers[0].work();
+
+        // the helpers write into the caller's arrays, never return before they are done
+        boolean interrupted = false;
+        synchronized (mLock) {
+            while (mRunning > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "interrupted while waiting for workers");
+                    interrupted = true;
+                }
+            }
+        }
+        mTask = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized int getPoolSize() {
+        if (sPoolSize == 0) {
+            sPoolSize = Math.max(Runtime.getRuntime().availableProcessors() - 1, 0);
+        }
+        return sPoolSize;
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(Math.max(getPoolSize(), 1), new ThreadFactory() {
+                private int mIndex = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AmbilightWorker-" + mIndex++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sPool;
+    }
+
+    private class Worker implements Runnable {
+        private final int mId;
+
+        public Worker(int id) {
+            mId = id;
+        }
+
+        @Override
+        public void run() {
+            try {
+                work();
+            } finally {
+                synchronized (mLock) {
+                    mRunning--;
+                    mLock.notifyAll();
+                }
+            }
+        }
+
+        public void work() {
+            final ZoneTask task = mTask;
+            final int count = mCount;
+            int start;
+            while ((start = mNext.getAndAdd(CHUNK_ZONES)) < count) {
+                int end = Math.min(start + CHUNK_ZONES, count);
+                for (int i = start; i < end; i++) {
+                    task.computeZone(mId, i);
+                }
+            }
+        }
+    }
+}
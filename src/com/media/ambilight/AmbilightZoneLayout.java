@@ -0,0 +1,121 @@
+package com.media.ambilight;
+
+/**
+ * Declarative zone layout: number of zones per screen edge and the sampled strip depth.
+ * compile() turns it into a flat array of zone rectangles (ZONE_STRIDE ints per zone), so
+ * the sampler only iterates it.
+ *
+ * Zones go clockwise starting from the bottom left corner: left edge bottom to top,
+ * top edge left to right, right edge top to bottom, bottom edge right to left.
+ * Buffer row 0 is the top of the picture.
+ */
+public class AmbilightZoneLayout {
+    public static final int EDGE_LEFT = 0;
+    public static final int EDGE_TOP = 1;
+    public static final int EDGE_RIGHT = 2;
+    public static final int EDGE_BOTTOM = 3;
+    public static final int EDGES = 4;
+
+    public static final int ZONE_X = 0;
+    public static final int ZONE_Y = 1;
+    public static final int ZONE_WIDTH = 2;
+    public static final int ZONE_HEIGHT = 3;
+    public static final int ZONE_STRIDE = 4;
+
+    private final int[] mCounts = new int[EDGES];
+    private final int mDepth;
+    private final int mZoneCount;
+
+    private final int[] mZones;
+    private final int[] mEdges;
+
+    public AmbilightZoneLayout(int left, int top, int right, int bottom, int depth) {
+        mCounts[EDGE_LEFT] = Math.max(left, 0);
+        mCounts[EDGE_TOP] = Math.max(top, 0);
+        mCounts[EDGE_RIGHT] = Math.max(right, 0);
+        mCounts[EDGE_BOTTOM] = Math.max(bottom, 0);
+        mDepth = Math.max(depth, 1);
+        mZoneCount = mCounts[EDGE_LEFT] + mCounts[EDGE_TOP] + mCounts[EDGE_RIGHT] + mCounts[EDGE_BOTTOM];
+
+        mZones = new int[mZoneCount * ZONE_STRIDE];
+        mEdges = new int[mZoneCount];
+    }
+
+    public static AmbilightZoneLayout fromSettings() {
+        return new AmbilightZoneLayout(AmbilightSettings.AMBILIGHT_ZONES_LEFT, AmbilightSettings.AMBILIGHT_ZONES_TOP,
+                AmbilightSettings.AMBILIGHT_ZONES_RIGHT, AmbilightSettings.AMBILIGHT_ZONES_BOTTOM,
+                AmbilightSettings.AMBILIGHT_EDGE_WEIGHT != AmbilightEdgeWeights.FALLOFF_NONE
+                        ? AmbilightSettings.AMBILIGHT_EDGE_WEIGHT_DEPTH : AmbilightSettings.AMBILIGHT_BORDER_WIDTH);
+    }
+
+    public int getZoneCount() {
+        return mZoneCount;
+    }
+
+    public int getCount(int edge) {
+        return mCounts[edge];
+    }
+
+    public int getDepth() {
+        return mDepth;
+    }
+
+    public int[] getZones() {
+        return mZones;
+    }
+
+    public int[] getEdges() {
+        return mEdges;
+    }
+
+    public int[] compile(int width, int height) {
+        return compile(0, 0, width, height);
+    }
+
+    public int[] compile(int areaX, int areaY, int areaWidth, int areaHeight) {
+        final int depthX = Math.min(mDepth, areaWidth);
+        final int depthY = Math.min(mDepth, areaHeight);
+
+        int zone = 0;
+
+        int count = mCounts[EDGE_LEFT];
+        for (int i = count - 1; i >= 0; i--) {
+            int y0 = areaY + areaHeight * i / count;
+            int y1 = areaY + areaHeight * (i + 1) / count;
+            zone = put(zone, EDGE_LEFT, areaX, y0, depthX, y1 - y0);
+        }
+
+        count = mCounts[EDGE_TOP];
+        for (int i = 0; i < count; i++) {
+            int x0 = areaX + areaWidth * i / count;
+            int x1 = areaX + areaWidth * (i + 1) / count;
+            zone = put(zone, EDGE_TOP, x0, areaY, x1 - x0, depthY);
+        }
+
+        count = mCounts[EDGE_RIGHT];
+        for (int i = 0; i < count; i++) {
+            int y0 = areaY + areaHeight * i / count;
+            int y1 = areaY + areaHeight * (i + 1) / count;
+            zone = put(zone, EDGE_RIGHT, areaX + areaWidth - depthX, y0, depthX, y1 - y0);
+        }
+
+        count = mCounts[EDGE_BOTTOM];
+        for (int i = count - 1; i >= 0; i--) {
+            int x0 = areaX + areaWidth * i / count;
+            int x1 = areaX + areaWidth * (i + 1) / count;
+            zone = put(zone, EDGE_BOTTOM, x0, areaY + areaHeight - depthY, x1 - x0, depthY);
+        }
+
+        return mZones;
+    }
+
+    private int put(int zone, int edge, int x, int y, int width, int height) {
+        int offset = zone * ZONE_STRIDE;
+        mZones[offset + ZONE_X] = x;
+        mZones[offset + ZONE_Y] = y;
+        mZones[offset + ZONE_WIDTH] = width;
+        mZones[offset + ZONE_HEIGHT] = height;
+        mEdges[zone] = edge;
+        return zone + 1;
+    }
+}
@@ -27,6 +27,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -157,6 +159,11 @@ public class SurfaceGL {
         public static final int PIXEL_FORMAT = GLES20.GL_RGBA;
         public static final int BYTES_PER_PIXEL = 4;
         public static final boolean SET_CHOOSER = true;
+
+        public static final int READ_FORMAT_RGBA8888 = 0;
+        // half of the readback bytes, used only if the implementation read format allows it
+        public static final int READ_FORMAT_RGB565 = 1;
+        public static final int READ_FORMAT = READ_FORMAT_RGBA8888;
     }
 
     public static class GLShaders {
@@ -283,12 +290,54 @@ public class SurfaceGL {
         public static final int PIXELS_HEIGHT = 16;
 
         protected ByteBuffer mBuffer;
+        // RGBA readback viewed as little endian ints (0xAABBGGRR), no backing array needed
+        protected IntBuffer mPixels;
+        // RGB565 readback viewed as native shorts
+        protected ShortBuffer mPixels565;
+
+        protected int mReadFormat;
+        private boolean mReadFormatChecked = false;
+
+        // own buffers, restored by detach()
+        private ByteBuffer mOwnBuffer;
+        private IntBuffer mOwnPixels;
+        private ShortBuffer mOwnPixels565;
 
         public PixelReader() {
-            if (PIXELS_WIDTH > 0 && PIXELS_HEIGHT > 0) {
+            this(VideoConfig.READ_FORMAT);
+        }
+
+        public PixelReader(int readFormat) {
+            this(readFormat, true);
+        }
+
+        // without own buffers the reader only works on attached frames
+        protected PixelReader(int readFormat, boolean ownBuffers) {
+            mReadFormat = readFormat;
+            if (ownBuffers && PIXELS_WIDTH > 0 && PIXELS_HEIGHT > 0) {
+                // sized for RGBA, so we can fall back if RGB565 isn't readable
                 mBuffer = ByteBuffer.allocateDirect(PIXELS_WIDTH * PIXELS_HEIGHT * VideoConfig.BYTES_PER_PIXEL);
                 mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                mPixels = mBuffer.asIntBuffer();
+                mPixels565 = mBuffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
             }
+            mOwnBuffer = mBuffer;
+            mOwnPixels = mPixels;
+            mOwnPixels565 = mPixels565;
+        }
+
+        // read into / sample from the buffers of a pooled frame instead of the own ones
+        public void attach(AmbilightFrame frame) {
+            mBuffer = frame.getBuffer();
+            mPixels = frame.getPixels();
+            mPixels565 = frame.getPixels565();
+        }
+
+        // back to the own buffers once the frame is handed over or released
+        public void detach() {
+            mBuffer = mOwnBuffer;
+            mPixels = mOwnPixels;
+            mPixels565 = mOwnPixels565;
         }
 
         public int getWidth() {
@@ -299,36 +348,70 @@ public class SurfaceGL {
             return PIXELS_HEIGHT;
         }
 
+        public int getReadFormat() {
+            return mReadFormat;
+        }
+
+        public boolean isRGB565() {
+            return mReadFormat == VideoConfig.READ_FORMAT_RGB565;
+        }
+
+        // packed Color of the pixel, whatever the readback format is
+        public int getPixel(int index) {
+            if (mReadFormat == VideoConfig.READ_FORMAT_RGB565) {
+                return AmbilightColorUtil.rgb565ToColor(mPixels565.get(index));
+            }
+            return AmbilightColorUtil.rgbaToColor(mPixels.get(index));
+        }
+
         public void fill() {
             if (mBuffer != null) {
+                if (!mReadFormatChecked) {
+                    mReadFormatChecked = true;
+                    checkReadFormat();
+                }
+
                 mBuffer.rewind();
-                GLES20.glReadPixels(0, 0, PIXELS_WIDTH, PIXELS_HEIGHT, VideoConfig.PIXEL_FORMAT, GLES20.GL_UNSIGNED_BYTE, mBuffer);
+                if (mReadFormat == VideoConfig.READ_FORMAT_RGB565) {
+                    GLES20.glReadPixels(0, 0, PIXELS_WIDTH, PIXELS_HEIGHT, GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, mBuffer);
+                } else {
+                    GLES20.glReadPixels(0, 0, PIXELS_WIDTH, PIXELS_HEIGHT, VideoConfig.PIXEL_FORMAT, GLES20.GL_UNSIGNED_BYTE, mBuffer);
+                }
+            }
+        }
+
+        private void checkReadFormat() {
+            if (mReadFormat != VideoConfig.READ_FORMAT_RGB565) {
+                return;
+            }
+
+            // GLES only guarantees GL_RGBA/GL_UNSIGNED_BYTE, the other pair is implementation defined
+            int[] value = new int[2];
+            GLES20.glGetIntegerv(GLES20.GL_IMPLEMENTATION_COLOR_READ_FORMAT, value, 0);
+            GLES20.glGetIntegerv(GLES20.GL_IMPLEMENTATION_COLOR_READ_TYPE, value, 1);
+            if (value[0] != GLES20.GL_RGB || value[1] != GLES20.GL_UNSIGNED_SHORT_5_6_5) {
+                Log.w(TAG, "RGB565 readback isn't supported (" + value[0] + ", " + value[1] + "), use RGBA");
+                mReadFormat = VideoConfig.READ_FORMAT_RGBA8888;
             }
         }
 
         public void dump() {
             if (mBuffer != null) {
-                String msg = new String("|");
-                byte[] pixelData = mBuffer.array();
-                for (int i = 0; i < pixelData.length; ++i) {
-                    msg += (String.valueOf(pixelData[i] & 0xFF) + ((i + 1) % 4 == 0 ? "|" : " "));
+                StringBuilder msg = new StringBuilder("|");
+                int length = mBuffer.capacity();
+                for (int i = 0; i < length; ++i) {
+                    msg.append(mBuffer.get(i) & 0xFF).append((i + 1) % 4 == 0 ? "|" : " ");
                 }
-                Log.v(TAG, "PixelFrame: " + pixelData.length + " " + msg);
+                Log.v(TAG, "PixelFrame: " + length + " " + msg);
             }
         }
 
         public void dumpFirstLastColor() {
-            byte[] pixelData = mBuffer.array();
+            int color = getPixel(0);
+            dumpColor(Color.red(color), Color.green(color), Color.blue(color));
 
-            int rSum = pixelData[0 + 0] & 0xFF;
-            int gSum = pixelData[0 + 1] & 0xFF;
-            int bSum = pixelData[0 + 2] & 0xFF;
-            dumpColor(rSum, gSum, bSum);
-
-            rSum = pixelData[pixelData.length - 4 + 0] & 0xFF;
-            gSum = pixelData[pixelData.length - 4 + 1] & 0xFF;
-            bSum = pixelData[pixelData.length - 4 + 2] & 0xFF;
-            dumpColor(rSum, gSum, bSum);
+            color = getPixel(PIXELS_WIDTH * PIXELS_HEIGHT - 1);
+            dumpColor(Color.red(color), Color.green(color), Color.blue(color));
         }
 
         public void dumpColor(int r, int g, int b) {
@@ -343,7 +426,8 @@ public class SurfaceGL {
                 e.printStackTrace();
             }
 
-            Bitmap bitmap = Bitmap.createBitmap(PIXELS_WIDTH, PIXELS_HEIGHT, Bitmap.Config.ARGB_8888);
+            Bitmap bitmap = Bitmap.createBitmap(PIXELS_WIDTH, PIXELS_HEIGHT,
+                    isRGB565() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
             bitmap.copyPixelsFromBuffer(mBuffer);
 
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -406,6 +490,8 @@ public class SurfaceGL {
 
         protected PixelReader mPixelReader = null;
         protected AtomicInteger mEnableRendering = new AtomicInteger(1);
+        // presentation time of the current video frame (SurfaceTexture.getTimestamp()), GL thread only
+        protected long mFrameTimestampNs = 0;
 
         public GLRenderer() {
             init(DEFAULT_TRIANGLE_VERTEXES_DATA);
@@ -457,6 +543,10 @@ public class SurfaceGL {
             mEnableRendering.set(enable ? 1 : 0);
         }
 
+        public void setFrameTimestamp(long timestampNs) {
+            mFrameTimestampNs = timestampNs;
+        }
+
         public void make(String fragmentSource) {
             mProgram = GLShaders.createProgram(GLShaders.VERTEX_SHADER, fragmentSource);
             if (mProgram == 0) {
@@ -582,12 +672,14 @@ public class SurfaceGL {
 
                     mSurfaceTexture.updateTexImage();
                     mSurfaceTexture.getTransformMatrix(mRendererVideo.mSTMatrix);
+                    mRendererVideo.setFrameTimestamp(mSurfaceTexture.getTimestamp());
 
                     mUpdateSurface = false;
                 }
             }
 
             if (mRendererExternal != null) {
+                mRendererExternal.setFrameTimestamp(mRendererVideo.mFrameTimestampNs);
                 mRendererExternal.draw();
             }
 
@@ -1,5 +1,7 @@
 package com.media.ambilight.ble;
 
+import com.media.ambilight.AmbilightSettings;
+
 import android.annotation.SuppressLint;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
@@ -20,10 +22,11 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.Callable;
 
 @SuppressLint("NewApi")
@@ -40,6 +43,7 @@ public class BluetoothLeService extends Service {
     private static final long STOP_SCAN_TIMEOUT_MS = 15000;
     private static final long CONNECT_TIMEOUT_MS = 500;
     private static final long RECONNECT_TIMEOUT_MS = 8000;
+    private static final long WRITE_TIMEOUT_MS = 250;
 
     public final static String ACTION_GATT_CONNECTED            = "ACTION_GATT_CONNECTED";
     public final static String ACTION_GATT_DISCONNECTED         = "ACTION_GATT_DISCONNECTED";
@@ -47,11 +51,10 @@ public class BluetoothLeService extends Service {
     public final static String ACTION_DATA_AVAILABLE            = "ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA                       = "EXTRA_DATA";
 
-    public final static UUID UUID_HEART_RATE_MEASUREMENT = UUID.fromString(BluetouthGattAttributes.HEART_RATE_MEASUREMENT);
-
     private final IBinder mBinder = new LocalBinder();
     private boolean mScaning = false;
     private boolean mClosed = false;
+    private volatile int mLatencyMs = 0;
 
     private Handler mHandler = new Handler();
     private Context mContext = null;
@@ -130,15 +133,171 @@ public class BluetoothLeService extends Service {
 
     private class BluetoothItem {
         private static final int MAX_CONNECTING_TIME_MS = 16000;
+        private static final int LATENCY_SMOOTHING = 8;
+        private static final int MAX_PENDING_COMMANDS = 4;
+        // one ATT write with the default MTU
+        private static final int MAX_COLOR_LENGTH = 20;
+        // failed unacknowledged writes in a row before the device falls back to acknowledged ones
+        private static final int MAX_NO_RESPONSE_FAILURES = 3;
 
         public String mMacAddress;
         public BluetoothGatt mBluetoothGatt = null;
         public int mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
         private long mConnectingTime = 0;
 
+        // resolved in onServicesDiscovered, guarded by the item lock
+        private BluetoothGattCharacteristic mCharacteristic = null;
+        // write type of the characteristic as discovered, used if it advertises neither type
+        private int mNativeWriteType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        // PROPERTY_WRITE is advertised, commands are acknowledged and no response can fall back
+        private boolean mAcknowledged = false;
+        // colors are written without response
+        private boolean mNoResponse = false;
+        private boolean mWritingNoResponse = false;
+        private int mNoResponseFailures = 0;
+
+        // write to onCharacteristicWrite round trip of acknowledged writes, smoothed. Without
+        // response the callback only means the stack took the write, that's no device latency.
+        private long mWriteStartNs = 0;
+        private volatile long mLatencyNs = 0;
+
+        // one write in flight per device: the latest color wins, state commands keep their order.
+        // Guarded by the item lock.
+        private byte[] mPendingColor = null;
+        private final ArrayDeque<byte[]> mPendingCommands = new ArrayDeque<byte[]>(MAX_PENDING_COMMANDS);
+        private boolean mWriting = false;
+        // color writes are copied into these, one per length since the written value has to be exact
+        private final byte[][] mColorBuffers = new byte[MAX_COLOR_LENGTH + 1][];
+
+        private final Runnable mWriteTimeout = new Runnable() {
+            @Override
+            public void run() {
+                onWriteTimeout(BluetoothItem.this);
+            }
+        };
+
         public BluetoothItem() {
         }
 
+        public void onWriteStarted() {
+            mWriteStartNs = System.nanoTime();
+        }
+
+        public boolean isWriteTimedOut() {
+            return mWriteStartNs > 0 && System.nanoTime() - mWriteStartNs > WRITE_TIMEOUT_MS * 1000000L;
+        }
+
+        public void offerColor(byte[] data, int length) {
+            byte[] buffer = length <= MAX_COLOR_LENGTH ? mColorBuffers[length] : null;
+            if (buffer == null) {
+                buffer = new byte[length];
+                if (length <= MAX_COLOR_LENGTH) {
+                    mColorBuffers[length] = buffer;
+                }
+            }
+            System.arraycopy(data, 0, buffer, 0, length);
+            mPendingColor = buffer;
+        }
+
+        // false if the oldest pending command had to be dropped for this one
+        public boolean offerCommand(byte[] data) {
+            boolean dropped = mPendingCommands.size() >= MAX_PENDING_COMMANDS;
+            if (dropped) {
+                Log.w(TAG, "BluetoothItem: too many pending commands " + mMacAddress + ", drop the oldest");
+                mPendingCommands.poll();
+            }
+            mPendingCommands.offer(data);
+            return !dropped;
+        }
+
+        public byte[] pollPending() {
+            byte[] data = mPendingCommands.poll();
+            if (data == null) {
+                data = mPendingColor;
+                mPendingColor = null;
+            }
+            return data;
+        }
+
+        // on disconnect, the services are discovered again on the next connection
+        public synchronized void clearPending() {
+            mCharacteristic = null;
+            mPendingColor = null;
+            mPendingCommands.clear();
+            mWriting = false;
+            mWriteStartNs = 0;
+        }
+
+        public void onWriteCompleted() {
+            if (mWriteStartNs == 0) {
+                return;
+            }
+            long latencyNs = System.nanoTime() - mWriteStartNs;
+            mWriteStartNs = 0;
+            if (mWritingNoResponse) {
+                return;
+            }
+            mLatencyNs = mLatencyNs == 0 ? latencyNs : (mLatencyNs * (LATENCY_SMOOTHING - 1) + latencyNs) / LATENCY_SMOOTHING;
+        }
+
+        public long getLatencyNs() {
+            return mLatencyNs;
+        }
+
+        public synchronized boolean resolveCharacteristic(BluetoothGatt gatt) {
+            mCharacteristic = null;
+            BluetoothGattService service = gatt.getService(BluetouthGattAttributes.UUID_LED_SERVICE);
+            if (service != null) {
+                mCharacteristic = service.getCharacteristic(BluetouthGattAttributes.UUID_LED_CHARACTERISTIC);
+            }
+            mAcknowledged = false;
+            mNoResponse = false;
+            mNoResponseFailures = 0;
+            if (mCharacteristic == null) {
+                return false;
+            }
+
+            final int properties = mCharacteristic.getProperties();
+            final boolean noResponse = (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+            mNativeWriteType = mCharacteristic.getWriteType();
+            mAcknowledged = (properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0;
+            // a write without response only controller gets it whatever the policy is
+            mNoResponse = noResponse && (!mAcknowledged
+                    || AmbilightSettings.AMBILIGHT_BLE_WRITE == AmbilightSettings.AMBILIGHT_BLE_WRITE_NO_RESPONSE);
+            Log.v(TAG, "BluetoothItem: " + mMacAddress + " acknowledged writes " + mAcknowledged
+                    + " no response writes " + mNoResponse);
+            return true;
+        }
+
+        // called with the item locked
+        public int getWriteType(boolean command) {
+            if (!command && mNoResponse) {
+                return BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+            }
+            return mAcknowledged ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : mNativeWriteType;
+        }
+
+        // called with the item locked
+        public boolean isWritable() {
+            return mCharacteristic != null && mBluetoothGatt != null && isConnected();
+        }
+
+        // called with the item locked, on a rejected, failed or lost unacknowledged write
+        public void onNoResponseFailure() {
+            // nothing to fall back to without acknowledged writes
+            if (!mAcknowledged) {
+                return;
+            }
+            if (mNoResponse && ++mNoResponseFailures >= MAX_NO_RESPONSE_FAILURES) {
+                Log.w(TAG, "BluetoothItem: " + mMacAddress + " drops no response writes, fall back to default");
+                mNoResponse = false;
+            }
+        }
+
+        public boolean hasPendingCommand() {
+            return !mPendingCommands.isEmpty();
+        }
+
         public BluetoothItem(BluetoothGatt gatt, String address) {
             mBluetoothGatt = gatt;
             mMacAddress = address;
@@ -154,16 +313,18 @@ public class BluetoothLeService extends Service {
             return mConnectingTime > 0 && System.currentTimeMillis() - mConnectingTime > MAX_CONNECTING_TIME_MS;
         }
 
-        public void disconnect() {
+        // synchronized with the writes, which run under the item lock
+        public synchronized void disconnect() {
             if (mBluetoothGatt != null) {
                 Log.v(TAG, "BluetoothItem: disconnect " + mMacAddress);
                 mBluetoothGatt.disconnect();
             }
             mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
             mConnectingTime = 0;
+            clearPending();
         }
 
-        public void close() {
+        public synchronized void close() {
             if (mBluetoothGatt != null) {
                 Log.v(TAG, "BluetoothItem: close " + mMacAddress);
                 mBluetoothGatt.close();
@@ -171,9 +332,10 @@ public class BluetoothLeService extends Service {
             }
             mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
             mConnectingTime = 0;
+            clearPending();
         }
 
-        public boolean connect() {
+        public synchronized boolean connect() {
             boolean status = false;
             if (mBluetoothGatt != null) {
                 mConnectionState = BluetoothProfile.STATE_CONNECTING;
@@ -186,7 +348,7 @@ public class BluetoothLeService extends Service {
             return status;
         }
 
-        public boolean discoverServices() {
+        public synchronized boolean discoverServices() {
             if (mBluetoothGatt != null) {
                 mConnectionState = BluetoothProfile.STATE_CONNECTED;
                 mConnectingTime = 0;
@@ -253,6 +415,17 @@ public class BluetoothLeService extends Service {
             }
         }
 
+        public long getMaxLatencyNs() {
+            long latencyNs = 0;
+            for (int i = 0; i < mBluetoothGatts.size(); ++i) {
+                BluetoothItem item = mBluetoothGatts.get(i);
+                if (item.isConnected()) {
+                    latencyNs = Math.max(latencyNs, item.getLatencyNs());
+                }
+            }
+            return latencyNs;
+        }
+
         public List<BluetoothItem> getConnected() {
             List<BluetoothItem> list = new ArrayList<BluetoothItem>();
             for (BluetoothItem i : mBluetoothGatts) {
@@ -327,6 +500,22 @@ public class BluetoothLeService extends Service {
             if (status != BluetoothConst.GATT_SUCCESS) {
                 Log.w(TAG, "onCharacteristicWrite status: " + status);
             }
+
+            BluetoothItem item = mGatts.lookup(gatt);
+            if (item != null) {
+                synchronized (item) {
+                    if (item.mWritingNoResponse) {
+                        if (status != BluetoothConst.GATT_SUCCESS) {
+                            item.onNoResponseFailure();
+                        } else {
+                            item.mNoResponseFailures = 0;
+                        }
+                    }
+                    item.onWriteCompleted();
+                    writeNext(item);
+                }
+                mLatencyMs = (int) (mGatts.getMaxLatencyNs() / 1000000L);
+            }
             super.onCharacteristicWrite(gatt, characteristic, status);
         }
 
@@ -343,6 +532,9 @@ public class BluetoothLeService extends Service {
                 for (BluetoothGattService s : services) {
                     Log.d(TAG, "onServicesDiscovered service: " + s.getUuid().toString());
                 }
+                if (!item.resolveCharacteristic(gatt)) {
+                    Log.w(TAG, "onServicesDiscovered: no LED characteristic on " + item.mMacAddress);
+                }
 
                 if (mCallback != null) {
                     mCallback.OnConnected();
@@ -425,39 +617,124 @@ public class BluetoothLeService extends Service {
         item.mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
 
         // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID
-                    .fromString(BluetouthGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            item.mBluetoothGatt.writeDescriptor(descriptor);
+        if (BluetouthGattAttributes.UUID_LED_SERVICE.equals(characteristic.getUuid())) {
+            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(BluetouthGattAttributes.UUID_CCC_DESCRIPTOR);
+            if (descriptor != null) {
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                item.mBluetoothGatt.writeDescriptor(descriptor);
+            }
         }
     }
 
-    public void sendCharacteristic(int index, byte[] data) {
+    /**
+     * Color stream write, a color still waiting for the previous write is replaced by this one.
+     * The first length bytes are copied, data can be reused right away.
+     *
+     * @return false if the device is not connected
+     */
+    public boolean sendColor(int index, byte[] data, int length) {
+        return enqueue(index, data, length, false);
+    }
+
+    /**
+     * State command write (on/off, brightness), commands are written in order.
+     * The first length bytes are copied, data can be reused right away. This is the only
+     * bounded command queue, a full one drops its oldest command.
+     *
+     * @return false if the device is not connected or a pending command was dropped
+     */
+    public boolean sendCommand(int index, byte[] data, int length) {
+        return enqueue(index, Arrays.copyOf(data, length), length, true);
+    }
+
+    /**
+     * Measured latency of acknowledged writes, the slowest connected device counts.
+     */
+    public int getLatencyMs() {
+        return mLatencyMs;
+    }
+
+    private boolean enqueue(int index, byte[] data, int length, boolean command) {
         if (mBluetoothAdapter == null) {
-            Log.w(TAG, "sendCharacteristic: not initialized");
-            return;
+            Log.w(TAG, "enqueue: not initialized");
+            return false;
         }
         BluetoothItem item = mGatts.lookup(index);
         if (item == null || !item.isConnected()) {
-            Log.w(TAG, "sendCharacteristic: device (" + (item != null ? item.mMacAddress : null) + ") is not connected");
+            Log.w(TAG, "enqueue: device (" + (item != null ? item.mMacAddress : null) + ") is not connected");
+            return false;
+        }
+
+        synchronized (item) {
+            boolean accepted = true;
+            if (command) {
+                accepted = item.offerCommand(data);
+            } else {
+                item.offerColor(data, length);
+            }
+
+            // the next write goes out from onCharacteristicWrite
+            if (!item.mWriting || item.isWriteTimedOut()) {
+                writeNext(item);
+            }
+            return accepted;
+        }
+    }
+
+    // called with the item locked
+    private void writeNext(BluetoothItem item) {
+        mHandler.removeCallbacks(item.mWriteTimeout);
+        item.mWriting = false;
+        item.mWritingNoResponse = false;
+
+        // not resolved yet or going away, that's no failure of the write type
+        if (!item.isWritable()) {
             return;
         }
 
-        BluetoothGattService needService = item.mBluetoothGatt.getService(UUID
-                .fromString(BluetouthGattAttributes.HEART_RATE_MEASUREMENT));
-        if (needService != null) {
-            BluetoothGattCharacteristic dataChaterristic = needService.getCharacteristic(UUID
-                    .fromString(BluetouthGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            if (dataChaterristic != null) {
-                dataChaterristic.setValue(data);
-                item.mBluetoothGatt.writeCharacteristic(dataChaterristic);
+        byte[] data;
+        boolean command = item.hasPendingCommand();
+        while ((data = item.pollPending()) != null) {
+            int writeType = item.getWriteType(command);
+            boolean noResponse = writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+            if (writeCharacteristic(item, data, writeType)) {
+                item.mWriting = true;
+                item.mWritingNoResponse = noResponse;
+                item.onWriteStarted();
+                mHandler.postDelayed(item.mWriteTimeout, WRITE_TIMEOUT_MS);
+                return;
+            }
+            if (noResponse) {
+                item.onNoResponseFailure();
             }
-        } else {
-            //Log.w(TAG, "BluetoothGattService empty index = " + index);
+            command = item.hasPendingCommand();
         }
     }
 
+    private void onWriteTimeout(BluetoothItem item) {
+        synchronized (item) {
+            if (item.mWriting) {
+                Log.w(TAG, "write timeout " + item.mMacAddress);
+                if (item.mWritingNoResponse) {
+                    item.onNoResponseFailure();
+                }
+                writeNext(item);
+            }
+        }
+    }
+
+    // called with the item locked and writable, false if the stack rejected the write
+    private boolean writeCharacteristic(BluetoothItem item, byte[] data, int writeType) {
+        BluetoothGattCharacteristic characteristic = item.mCharacteristic;
+        BluetoothGatt gatt = item.mBluetoothGatt;
+
+        // without response the write doesn't wait for the device, onCharacteristicWrite
+        // still comes once the stack took it, which keeps the one write in flight pacing
+        characteristic.setWriteType(writeType);
+        characteristic.setValue(data);
+        return gatt.writeCharacteristic(characteristic);
+    }
+
     public void reset() {
         Log.i(TAG, "reset start");
         stopScan();
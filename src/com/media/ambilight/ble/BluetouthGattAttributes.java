@@ -6,6 +6,7 @@ import android.text.TextUtils;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.UUID;
 
 public class BluetouthGattAttributes {
     private static HashMap<String, String> mAttributes = new HashMap<String, String>();
@@ -16,6 +17,12 @@ public class BluetouthGattAttributes {
     public static String CLIENT_CHARACTERISTIC_CONFIG = "D44BC439-ABFD-45A2-B575-925416129600";
     //public static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
 
+    // parsed once, looked up when the services are discovered
+    public static final UUID UUID_LED_SERVICE = UUID.fromString(HEART_RATE_MEASUREMENT);
+    public static final UUID UUID_LED_CHARACTERISTIC = UUID.fromString(CLIENT_CHARACTERISTIC_CONFIG);
+    // standard Client Characteristic Configuration descriptor, enables notifications
+    public static final UUID UUID_CCC_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
     static {
         mAttributes.put(HEART_RATE_MEASUREMENT, "LED");
         mAttributes.put(CLIENT_CHARACTERISTIC_CONFIG, "LEDINPUT");
@@ -0,0 +1,65 @@
+package com.media.ambilight.ble;
+
+/**
+ * Writes the ASCII LED protocol commands ("$COL,r,g,b?", "$BRI,v,v?") straight into a reusable
+ * buffer, no strings on the way. One encoder per device, the buffer is valid until the next
+ * encode call, BluetoothLeService copies what it keeps. Fixed commands are copied from templates.
+ */
+public class LEDCommandEncoder {
+    private static final byte[] COMMAND_ON = { '$', 'G', 'O', 'N', '?' };
+    private static final byte[] COMMAND_OFF = { '$', 'G', 'O', 'F', '?' };
+
+    private static final byte[] PREFIX_COLOR = { '$', 'C', 'O', 'L', ',' };
+    private static final byte[] PREFIX_BRIGHTNESS = { '$', 'B', 'R', 'I', ',' };
+
+    // "$COL,255,255,255?"
+    private static final int MAX_LENGTH = 17;
+
+    private final byte[] mBuffer = new byte[MAX_LENGTH];
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int encodeColor(int r, int g, int b) {
+        int position = put(PREFIX_COLOR, 0);
+        position = putNumber(r, position);
+        mBuffer[position++] = ',';
+        position = putNumber(g, position);
+        mBuffer[position++] = ',';
+        position = putNumber(b, position);
+        mBuffer[position++] = '?';
+        return position;
+    }
+
+    public int encodeBrightness(int value) {
+        int position = put(PREFIX_BRIGHTNESS, 0);
+        position = putNumber(value, position);
+        mBuffer[position++] = ',';
+        position = putNumber(value, position);
+        mBuffer[position++] = '?';
+        return position;
+    }
+
+    public int encodeOnOff(boolean off) {
+        return put(off ? COMMAND_OFF : COMMAND_ON, 0);
+    }
+
+    private int put(byte[] bytes, int position) {
+        System.arraycopy(bytes, 0, mBuffer, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    // 0..255
+    private int putNumber(int value, int position) {
+        value = Math.max(0, Math.min(value, 255));
+        if (value >= 100) {
+            mBuffer[position++] = (byte) ('0' + value / 100);
+        }
+        if (value >= 10) {
+            mBuffer[position++] = (byte) ('0' + value / 10 % 10);
+        }
+        mBuffer[position++] = (byte) ('0' + value % 10);
+        return position;
+    }
+}